@@ -22,19 +22,27 @@
 package org.jboss.ejb3.jndi.binder;
 
 import javax.naming.Context;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 
+import org.jboss.ejb3.jndi.binder.impl.BindingBatch;
+import org.jboss.ejb3.jndi.binder.impl.NamingUtil;
 import org.jboss.ejb3.jndi.binder.impl.View;
 import org.jboss.ejb3.jndi.binder.metadata.SessionBeanType;
 import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
 import org.jboss.logging.Logger;
 import org.jboss.reloaded.naming.spi.JavaEEApplication;
 import org.jboss.reloaded.naming.spi.JavaEEModule;
-import org.jboss.util.naming.Util;
 
 /**
  * Bind a view into JNDI according to EJB 3.1 4.4 Global JNDI Access.
@@ -48,20 +56,60 @@ public class EJBBinder
    private SessionBeanType bean;
    private Context globalContext;
    private ProxyFactory proxyFactory;
+   private boolean batchBind;
 
-   private Collection<View> views = new LinkedList<View>();
+   /**
+    * The views of the bean, constructed on first use, so that the classes of the
+    * bean aren't needed before it gets bound
+    */
+   private Collection<View> views;
+
+   /**
+    * The names the views are bound under, see {@link #getBindings()}
+    */
+   private List<Binding> bindings;
+
+   /**
+    * The proxies bound, one for each of the bindings, see {@link #rebind(EJBBinder)}
+    */
+   private volatile List<Object> boundProxies;
+
+   /**
+    * Set once another binder has {@link #rebind(EJBBinder) taken over} the names, which this
+    * binder then leaves alone
+    */
+   private volatile boolean released;
+
+   /**
+    * The names bound so far while {@link #bind()} is in progress, to be rolled back on failure
+    */
+   private List<Binding> bound;
+
+   /**
+    * The first failure to unbind a name while {@link #unbind()} or {@link #rebind(EJBBinder)} is in progress
+    */
+   private NamingException unbindFailure;
 
    public EJBBinder(SessionBeanType bean)
    {
       this.bean = bean;
+   }
 
-      constructViews(views, bean.getBusinessLocals(), View.Type.BUSINESS_LOCAL, bean);
-      constructViews(views, bean.getBusinessRemotes(), View.Type.BUSINESS_REMOTE, bean);
-      constructView(views, bean.getHome(), View.Type.HOME, bean);
-      constructView(views, bean.getLocalHome(), View.Type.LOCAL_HOME, bean);
+   protected synchronized Collection<View> getViews()
+   {
+      if(views == null)
+      {
+         Collection<View> views = new LinkedList<View>();
+         constructViews(views, bean.getBusinessLocals(), View.Type.BUSINESS_LOCAL, bean);
+         constructViews(views, bean.getBusinessRemotes(), View.Type.BUSINESS_REMOTE, bean);
+         constructView(views, bean.getHome(), View.Type.HOME, bean);
+         constructView(views, bean.getLocalHome(), View.Type.LOCAL_HOME, bean);
 
-      if(bean.isLocalBean())
-         views.add(new View(bean.getEJBClass(), View.Type.LOCAL_BEAN, bean));
+         if(bean.isLocalBean())
+            views.add(new View(bean.getEJBClass(), View.Type.LOCAL_BEAN, bean));
+         this.views = views;
+      }
+      return views;
    }
 
    private static void constructViews(Collection<View> views, Collection<Class<?>> businessInterfaces, View.Type type, SessionBeanType bean)
@@ -84,65 +132,326 @@ public class EJBBinder
       constructViews(views, businessInterfaces, type, bean);
    }
 
+   /**
+    * Returns the names the views of the bean are bound under, computed on first use.
+    * For each view, in order: the global, app and module names (4.4.1, 4.4.1.1, 4.4.1.2), each followed
+    * by the additional name as specified by 4.4.1 section of EJB3.1 when the bean exposes just 1 view.
+    * So each view has {@link #getNamesPerScope()} names in each of the 3 scopes.
+    */
+   protected synchronized List<Binding> getBindings()
+   {
+      if(bindings == null)
+      {
+         Context appContext = bean.getModule().getApplication().getContext();
+         Context moduleContext = bean.getModule().getContext();
+         boolean singleView = hasSingleView();
+         List<Binding> bindings = new ArrayList<Binding>();
+         for(View view : getViews())
+         {
+            Class<?> businessInterface = view.getBusinessInterface();
+            // 4.4.1
+            bindings.add(new Binding(view, globalContext, getGlobalJNDIName(businessInterface)));
+            if(singleView)
+               bindings.add(new Binding(view, globalContext, getGlobalJNDIName(null)));
+            // 4.4.1.1
+            bindings.add(new Binding(view, appContext, getAppJNDIName(businessInterface)));
+            if(singleView)
+               bindings.add(new Binding(view, appContext, getAppJNDIName(null)));
+            // 4.4.1.2
+            bindings.add(new Binding(view, moduleContext, getModuleJNDIName(businessInterface)));
+            if(singleView)
+               bindings.add(new Binding(view, moduleContext, getModuleJNDIName(null)));
+         }
+         this.bindings = Collections.unmodifiableList(bindings);
+      }
+      return bindings;
+   }
+
+   /**
+    * Returns the number of names a view is bound under within each of the global, app and module
+    * scopes: 2 when the bean exposes just 1 view, 1 otherwise.
+    */
+   private int getNamesPerScope()
+   {
+      return hasSingleView() ? 2 : 1;
+   }
+
+   /**
+    * Produces the proxies of the views, one for each of the {@link #getBindings() bindings}.
+    * The bindings of a view share the same proxy.
+    */
+   private List<Object> produceProxies(List<Binding> bindings)
+   {
+      List<Object> proxies = new ArrayList<Object>(bindings.size());
+      View view = null;
+      Object proxy = null;
+      for(Binding binding : bindings)
+      {
+         // the bindings of a view are next to each other
+         if(binding.getView() != view)
+         {
+            view = binding.getView();
+            proxy = proxyFactory.produce(view);
+         }
+         proxies.add(proxy);
+      }
+      return proxies;
+   }
+
+   /**
+    * Binds the views under all their {@link #getBindings() names}, through {@link #bindGlobal(View, Object, List)},
+    * {@link #bindApp(View, Object, List)} and {@link #bindModule(View, Object, List)} for each view. If a name
+    * can't be bound, the names bound so far by {@link #bind(Context, String, Object)} are unbound
+    * before the failure is reported, so nothing is left behind.
+    */
    // PostConstruct
    public void bind() throws NamingException
    {
-      for(View view : views)
+      if(batchBind)
       {
-         Object proxy = proxyFactory.produce(view);
-         // 4.4.1
-         bindGlobal(view, proxy);
-         // 4.4.1.1
-         bindApp(view, proxy);
-         // 4.4.1.2
-         bindModule(view, proxy);
+         bindAll(Collections.singletonList(this));
+         return;
       }
+      List<Binding> bindings = getBindings();
+      List<Object> proxies = produceProxies(bindings);
+      int n = getNamesPerScope();
+      List<Binding> bound = new ArrayList<Binding>(bindings.size());
+      this.bound = bound;
+      boolean done = false;
+      try
+      {
+         for(int i = 0; i < bindings.size(); i += 3 * n)
+         {
+            View view = bindings.get(i).getView();
+            Object proxy = proxies.get(i);
+            // 4.4.1
+            bindGlobal(view, proxy, bindings.subList(i, i + n));
+            // 4.4.1.1
+            bindApp(view, proxy, bindings.subList(i + n, i + 2 * n));
+            // 4.4.1.2
+            bindModule(view, proxy, bindings.subList(i + 2 * n, i + 3 * n));
+         }
+         done = true;
+      }
+      finally
+      {
+         this.bound = null;
+         if(!done)
+            rollback(bound);
+      }
+      this.boundProxies = proxies;
+      this.released = false;
    }
 
-   @SuppressWarnings({"deprecation"})
-   protected void bind(Context ctx, String name, Object obj) throws NamingException
+   /**
+    * Takes over the names bound by <code>previous</code>, a bound binder of the same bean which is being
+    * replaced, e.g. on redeploy. Only the differences are applied: the names <code>previous</code> bound
+    * which this binder doesn't have are unbound, the names whose proxy changed are rebound and the new
+    * names are bound. The names bound to an equal proxy are left alone, so they can be looked up throughout.
+    * <p>
+    *    Once done, <code>previous</code> no longer owns any name, so {@link #unbind() unbinding} it leaves
+    *    the names of this binder alone. If a name can't be bound, the failure is reported and the names are
+    *    left as they are at that point, still owned by <code>previous</code>.
+    * </p>
+    *
+    * @param previous the binder whose names are taken over
+    */
+   public void rebind(EJBBinder previous) throws NamingException
    {
-      if(log.isDebugEnabled())
-         log.debug("Binding " + obj + " at " + name + " under " + ctx);
-      Util.bind(ctx, name, obj);
+      if(previous == null)
+         throw new IllegalArgumentException("Null previous binder");
+
+      List<Binding> bindings = getBindings();
+      List<Object> proxies = produceProxies(bindings);
+
+      // what previous has bound, by context and name
+      Map<Context, Map<String, Object>> previouslyBound = new HashMap<Context, Map<String, Object>>();
+      List<Binding> previousBindings = previous.getBindings();
+      List<Object> previousProxies = previous.boundProxies;
+      if(previousProxies != null && previousProxies.size() != previousBindings.size())
+         previousProxies = null;
+      for(int i = 0; i < previousBindings.size(); i++)
+      {
+         Binding binding = previousBindings.get(i);
+         Map<String, Object> names = previouslyBound.get(binding.getContext());
+         if(names == null)
+         {
+            names = new HashMap<String, Object>();
+            previouslyBound.put(binding.getContext(), names);
+         }
+         // if previous didn't bind itself, its proxies are unknown, so they will be rebound
+         names.put(binding.getName(), previousProxies == null ? null : previousProxies.get(i));
+      }
+
+      for(int i = 0; i < bindings.size(); i++)
+      {
+         Binding binding = bindings.get(i);
+         Object proxy = proxies.get(i);
+         Map<String, Object> names = previouslyBound.get(binding.getContext());
+         if(names == null || !names.containsKey(binding.getName()))
+         {
+            bind(binding.getContext(), binding.getName(), proxy);
+            continue;
+         }
+         Object previousProxy = names.remove(binding.getName());
+         if(previousProxy != null && previousProxy.equals(proxy))
+         {
+            if(log.isTraceEnabled())
+               log.trace("Keeping " + previousProxy + " at " + binding);
+            continue;
+         }
+         if(log.isDebugEnabled())
+            log.debug("Rebinding " + proxy + " at " + binding);
+         NamingUtil.rebind(binding.getContext(), binding.getName(), proxy);
+      }
+
+      // the names left are gone
+      this.unbindFailure = null;
+      for(Map.Entry<Context, Map<String, Object>> names : previouslyBound.entrySet())
+      {
+         for(String name : names.getValue().keySet())
+         {
+            unbind(names.getKey(), name);
+         }
+      }
+      NamingException failure = this.unbindFailure;
+      this.unbindFailure = null;
+      this.boundProxies = proxies;
+      this.released = false;
+      previous.boundProxies = null;
+      previous.released = true;
+      if(failure != null)
+         throw failure;
    }
 
-   protected void bindApp(View view, Object proxy) throws NamingException
+   /**
+    * Unbinds the passed names, which have just been bound, in reverse order. A failure
+    * to unbind a name is logged, the others are unbound anyway.
+    */
+   private void rollback(List<Binding> bound)
    {
-      String name = getAppJNDIName(view.getBusinessInterface());
-      bind(bean.getModule().getApplication().getContext(), name, proxy);
-      
-      // bind to an additional JNDI name (as specified by 4.4.1 section of EJB3.10
-      // when the bean exposes just 1 view
-      if (this.hasSingleView())
+      for(ListIterator<Binding> it = bound.listIterator(bound.size()); it.hasPrevious();)
       {
-         bind(bean.getModule().getApplication().getContext(), this.getAppJNDIName(null), proxy);
+         Binding binding = it.previous();
+         try
+         {
+            binding.getContext().unbind(binding.getName());
+         }
+         catch(NamingException e)
+         {
+            log.warn("Failed to unbind " + binding + " while rolling back the bindings of " + bean.getName(), e);
+         }
       }
-      
    }
 
-   protected void bindGlobal(View view, Object proxy) throws NamingException
+   /**
+    * Binds the views of all the passed binders, under all their names, in one {@link BindingBatch}.
+    * If a name can't be bound, none of the names are left bound and the failure is reported.
+    *
+    * @param binders the binders to bind
+    */
+   public static void bindAll(List<EJBBinder> binders) throws NamingException
    {
-      bind(globalContext, getGlobalJNDIName(view.getBusinessInterface()), proxy);
-      
-      // bind to an additional JNDI name (as specified by 4.4.1 section of EJB3.10
-      // when the bean exposes just 1 view
-      if (this.hasSingleView())
+      BindingBatch batch = new BindingBatch();
+      List<List<Object>> proxies = new ArrayList<List<Object>>(binders.size());
+      for(EJBBinder binder : binders)
+      {
+         proxies.add(binder.addBindings(batch, binder.getBindings()));
+      }
+      batch.bind();
+      // the binders own the names only once they're all bound
+      for(int i = 0; i < binders.size(); i++)
       {
-         bind(globalContext, getGlobalJNDIName(null), proxy);
+         binders.get(i).boundProxies = proxies.get(i);
+         binders.get(i).released = false;
       }
    }
 
-   protected void bindModule(View view, Object proxy) throws NamingException
+   /**
+    * Adds the proxies of the views, under all their names, to the passed batch. The binder doesn't
+    * know which proxies are bound, so {@link #rebind(EJBBinder) taking over} its names rebinds them
+    * all; use {@link #bindAll(List)} to bind binders in a batch instead.
+    *
+    * @param batch the batch to bind the proxies with
+    */
+   public void addBindings(BindingBatch batch)
    {
-      bind(bean.getModule().getContext(), getModuleJNDIName(view.getBusinessInterface()), proxy);
-      
-      // bind to an additional JNDI name (as specified by 4.4.1 section of EJB3.10
-      // when the bean exposes just 1 view
-      if (this.hasSingleView())
+      addBindings(batch, getBindings());
+   }
+
+   private List<Object> addBindings(BindingBatch batch, List<Binding> bindings)
+   {
+      List<Object> proxies = produceProxies(bindings);
+      for(int i = 0; i < bindings.size(); i++)
       {
-         bind(bean.getModule().getContext(), getModuleJNDIName(null), proxy);
+         Binding binding = bindings.get(i);
+         batch.add(binding.getContext(), binding.getName(), proxies.get(i));
       }
+      return proxies;
+   }
+
+   /**
+    * Binds <code>obj</code>, creating the intermediate subcontexts as needed. Binders
+    * can bind concurrently under the same parent contexts.
+    */
+   protected void bind(Context ctx, String name, Object obj) throws NamingException
+   {
+      if(log.isDebugEnabled())
+         log.debug("Binding " + obj + " at " + name + " under " + ctx);
+      NamingUtil.bind(ctx, name, obj);
+      List<Binding> bound = this.bound;
+      if(bound != null)
+         bound.add(new Binding(null, ctx, name));
+   }
+
+   /**
+    * Binds <code>proxy</code> under each of the passed names.
+    */
+   private void bind(List<Binding> bindings, Object proxy) throws NamingException
+   {
+      for(Binding binding : bindings)
+      {
+         bind(binding.getContext(), binding.getName(), proxy);
+      }
+   }
+
+   /**
+    * Binds the proxy of a view under its app names, on {@link #bind()}. It isn't called
+    * when binding in a batch.
+    *
+    * @param view the view
+    * @param proxy the proxy of the view
+    * @param bindings the app names of the view, see {@link #getBindings()}
+    */
+   protected void bindApp(View view, Object proxy, List<Binding> bindings) throws NamingException
+   {
+      bind(bindings, proxy);
+   }
+
+   /**
+    * Binds the proxy of a view under its global names, on {@link #bind()}. It isn't called
+    * when binding in a batch.
+    *
+    * @param view the view
+    * @param proxy the proxy of the view
+    * @param bindings the global names of the view, see {@link #getBindings()}
+    */
+   protected void bindGlobal(View view, Object proxy, List<Binding> bindings) throws NamingException
+   {
+      bind(bindings, proxy);
+   }
+
+   /**
+    * Binds the proxy of a view under its module names, on {@link #bind()}. It isn't called
+    * when binding in a batch.
+    *
+    * @param view the view
+    * @param proxy the proxy of the view
+    * @param bindings the module names of the view, see {@link #getBindings()}
+    */
+   protected void bindModule(View view, Object proxy, List<Binding> bindings) throws NamingException
+   {
+      bind(bindings, proxy);
    }
 
    /**
@@ -183,66 +492,193 @@ public class EJBBinder
       return bean.getName() + (businessInterface != null ? "!" + businessInterface.getName() : "");
    }
 
-   public void setGlobalContext(Context context)
+   public synchronized void setGlobalContext(Context context)
    {
       this.globalContext = context;
+      // the names have to be bound under the new context
+      this.bindings = null;
    }
 
    public void setProxyFactory(ProxyFactory proxyFactory)
    {
       this.proxyFactory = proxyFactory;
    }
+
+   public boolean isBatchBind()
+   {
+      return batchBind;
+   }
+
+   /**
+    * When set, {@link #bind()} binds all the names through a {@link BindingBatch}, so the
+    * intermediate subcontexts are walked once per context instead of once per name.
+    * {@link #bind(Context, String, Object)} isn't called in that case.
+    *
+    * @param batchBind whether to bind in a batch
+    */
+   public void setBatchBind(boolean batchBind)
+   {
+      this.batchBind = batchBind;
+   }
    
+   /**
+    * Unbinds all the {@link #getBindings() names} of the views, through {@link #unbindModule(View, List)},
+    * {@link #unbindApp(View, List)} and {@link #unbindGlobal(View, List)} for each view, in the reverse order
+    * of {@link #bind()}. Names which aren't bound are skipped. If a name can't be unbound, the others are
+    * unbound anyway and the first failure is reported. Nothing is unbound once another binder has
+    * {@link #rebind(EJBBinder) taken over} the names.
+    */
    // PreDestroy
    public void unbind() throws NamingException
    {
-      for(View view : views)
+      if(released)
       {
-         unbindModule(view);
-         unbindApp(view);
-         unbindGlobal(view);
+         if(log.isDebugEnabled())
+            log.debug("Not unbinding " + bean.getName() + ", whose names have been taken over");
+         return;
+      }
+      this.boundProxies = null;
+      List<Binding> bindings = getBindings();
+      int n = getNamesPerScope();
+      this.unbindFailure = null;
+      for(int i = bindings.size(); i > 0; i -= 3 * n)
+      {
+         View view = bindings.get(i - 1).getView();
+         try
+         {
+            unbindModule(view, bindings.subList(i - n, i));
+            unbindApp(view, bindings.subList(i - 2 * n, i - n));
+            unbindGlobal(view, bindings.subList(i - 3 * n, i - 2 * n));
+         }
+         catch(NamingException e)
+         {
+            unbindFailed(view.getBusinessInterface().getName() + " of " + bean.getName(), e);
+         }
       }
+      NamingException failure = this.unbindFailure;
+      this.unbindFailure = null;
+      if(failure != null)
+         throw failure;
    }
 
-   protected void unbindApp(View view) throws NamingException
+   /**
+    * Unbinds <code>name</code>. A name which isn't bound is skipped, a failure is reported
+    * by {@link #unbind()} or {@link #rebind(EJBBinder)} once all the names have been unbound.
+    */
+   private void unbind(Context ctx, String name)
    {
-      bean.getModule().getApplication().getContext().unbind(getAppJNDIName(view.getBusinessInterface()));
-      
-      // unbind from the additional JNDI name, if the bean exposed just 1 view
-      if (this.hasSingleView())
+      try
       {
-         bean.getModule().getApplication().getContext().unbind(getAppJNDIName(null));   
+         ctx.unbind(name);
+      }
+      catch(NameNotFoundException e)
+      {
+         if(log.isDebugEnabled())
+            log.debug("Skipping " + name + " under " + ctx + ", which isn't bound");
+      }
+      catch(NamingException e)
+      {
+         unbindFailed(name + " under " + ctx, e);
       }
    }
 
-   protected void unbindGlobal(View view) throws NamingException
+   private void unbindFailed(String what, NamingException e)
    {
-      globalContext.unbind(getGlobalJNDIName(view.getBusinessInterface()));
-      
-      // unbind from the additional JNDI name, if the bean exposed just 1 view
-      if (this.hasSingleView())
-      {
-         globalContext.unbind(getGlobalJNDIName(null));
-      }
+      if(unbindFailure == null)
+         unbindFailure = e;
+      else
+         log.warn("Failed to unbind " + what, e);
    }
 
-   protected void unbindModule(View view) throws NamingException
+   /**
+    * Unbinds the passed names, in reverse order.
+    */
+   private void unbind(List<Binding> bindings)
    {
-      bean.getModule().getContext().unbind(getModuleJNDIName(view.getBusinessInterface()));
-      
-      // unbind from the additional JNDI name, if the bean exposed just 1 view
-      if (this.hasSingleView())
+      for(ListIterator<Binding> it = bindings.listIterator(bindings.size()); it.hasPrevious();)
       {
-         bean.getModule().getContext().unbind(getModuleJNDIName(null));
+         Binding binding = it.previous();
+         unbind(binding.getContext(), binding.getName());
       }
    }
-   
+
+   /**
+    * Unbinds a view from its app names, on {@link #unbind()}.
+    *
+    * @param view the view
+    * @param bindings the app names of the view, see {@link #getBindings()}
+    */
+   protected void unbindApp(View view, List<Binding> bindings) throws NamingException
+   {
+      unbind(bindings);
+   }
+
+   /**
+    * Unbinds a view from its global names, on {@link #unbind()}.
+    *
+    * @param view the view
+    * @param bindings the global names of the view, see {@link #getBindings()}
+    */
+   protected void unbindGlobal(View view, List<Binding> bindings) throws NamingException
+   {
+      unbind(bindings);
+   }
+
+   /**
+    * Unbinds a view from its module names, on {@link #unbind()}.
+    *
+    * @param view the view
+    * @param bindings the module names of the view, see {@link #getBindings()}
+    */
+   protected void unbindModule(View view, List<Binding> bindings) throws NamingException
+   {
+      unbind(bindings);
+   }
+
    /**
     * Returns true if the bean exposes just 1 view to the client. Else returns false
     * @return true if there is a single view, false otherwise
     */
    protected boolean hasSingleView()
    {
-      return this.views != null && this.views.size() == 1;
+      return this.getViews().size() == 1;
+   }
+
+   /**
+    * A name a view is bound under, within a context
+    */
+   protected static final class Binding
+   {
+      private final View view;
+      private final Context context;
+      private final String name;
+
+      Binding(View view, Context context, String name)
+      {
+         this.view = view;
+         this.context = context;
+         this.name = name;
+      }
+
+      public View getView()
+      {
+         return view;
+      }
+
+      public Context getContext()
+      {
+         return context;
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      @Override
+      public String toString()
+      {
+         return name + " under " + context;
+      }
    }
 }
@@ -24,17 +24,32 @@ package org.jboss.ejb3.jndi.binder.impl;
 
 import javax.naming.Context;
 import javax.naming.Name;
+import javax.naming.NamingException;
 import javax.naming.RefAddr;
 import javax.naming.Reference;
 import javax.naming.StringRefAddr;
 import javax.naming.spi.ObjectFactory;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 
 import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
+import org.jboss.logging.Logger;
+import org.jboss.util.collection.ConcurrentReferenceHashMap;
+import org.jboss.util.collection.ConcurrentReferenceHashMap.ReferenceType;
 
 import javassist.util.proxy.MethodFilter;
 import javassist.util.proxy.MethodHandler;
@@ -47,6 +62,26 @@ import javassist.util.proxy.ProxyObject;
  */
 public abstract class AbstractLazyProxyFactory implements ProxyFactory
 {
+   private static final Logger log = Logger.getLogger(AbstractLazyProxyFactory.class);
+
+   /**
+    * Proxy classes per target class.
+    *
+    * A class pins its defining class loader, so the target class stands for the
+    * (class loader, class) pair. Keys and values are weak, the proxy class
+    * references the target class and its loader would otherwise never be released.
+    */
+   private static final ConcurrentMap<Class<?>, Class<?>> proxyClasses = new ConcurrentReferenceHashMap<Class<?>, Class<?>>(ReferenceType.WEAK, ReferenceType.WEAK);
+
+   /**
+    * Dispatch tables per target class, held weakly for the same reason as the proxy classes.
+    * The table is kept alive by the invoker class of the target class, which lives as long as
+    * the class loader of the target class, so it isn't rebuilt once the proxies using it are gone.
+    */
+   private static final ConcurrentMap<Class<?>, DispatchTable> dispatchTables = new ConcurrentReferenceHashMap<Class<?>, DispatchTable>(ReferenceType.WEAK, ReferenceType.WEAK);
+
+   private boolean directDelegate;
+
    /**
     * Create a lazy ref.
     *
@@ -56,14 +91,51 @@ public abstract class AbstractLazyProxyFactory implements ProxyFactory
     */
    public Object lazyLinkRef(String className, String linkName)
    {
-      String factory = LazyObjectFactory.class.getName();
+      String factory = (directDelegate ? DelegateObjectFactory.class : LazyObjectFactory.class).getName();
       RefAddr addr = new StringRefAddr("link", linkName);
       return new Reference(className, addr, factory, null);
    }
 
+   /**
+    * Do lazy refs to business interfaces produce generated delegates
+    * instead of javassist proxies.
+    *
+    * @return true if generated delegates are used
+    */
+   public boolean isDirectDelegate()
+   {
+      return directDelegate;
+   }
+
+   /**
+    * Produce generated delegates, which call the target directly, for lazy refs to business interfaces.
+    * Lazy refs to a class are always served by a javassist proxy.
+    *
+    * @param directDelegate true to use generated delegates
+    */
+   public void setDirectDelegate(boolean directDelegate)
+   {
+      this.directDelegate = directDelegate;
+   }
+
    public static class LazyObjectFactory implements ObjectFactory
    {
       public Object getObjectInstance(Object obj, Name name, Context context, Hashtable<?, ?> hashtable) throws Exception
+      {
+         String link = getLink(obj);
+         if (link == null)
+            return null;
+
+         return createProxy(loadClass((Reference) obj), link, context);
+      }
+
+      /**
+       * Get the link of a lazy ref.
+       *
+       * @param obj the object being looked up
+       * @return the link, or null if the object isn't a lazy ref
+       */
+      protected static String getLink(Object obj)
       {
          if (obj == null || obj instanceof Reference == false)
             return null;
@@ -73,23 +145,143 @@ public abstract class AbstractLazyProxyFactory implements ProxyFactory
          if (addr == null || addr instanceof StringRefAddr == false)
             return null;
 
-         String link = (String) addr.getContent();
+         return (String) addr.getContent();
+      }
+
+      /**
+       * Load the class a lazy ref stands for.
+       *
+       * @param ref the lazy ref
+       * @return the class
+       * @throws ClassNotFoundException if the class can't be loaded
+       */
+      protected static Class<?> loadClass(Reference ref) throws ClassNotFoundException
+      {
          ClassLoader tccl = Thread.currentThread().getContextClassLoader(); // HACK?
-         Class<?> clazz = tccl.loadClass(ref.getClassName());
+         return tccl.loadClass(ref.getClassName());
+      }
 
-         javassist.util.proxy.ProxyFactory factory = new javassist.util.proxy.ProxyFactory();
-         factory.setFilter(FINALIZE_FILTER);
-         if (clazz.isInterface())
-            factory.setInterfaces(new Class[]{clazz});
-         else
-            factory.setSuperclass(clazz);
-         Class<?> proxyClass = getProxyClass(factory);
+      /**
+       * Create a javassist proxy resolving the link on first use.
+       *
+       * @param clazz the interface or class to proxy
+       * @param link the link
+       * @param context the context to look the link up in
+       * @return the proxy
+       * @throws Exception for any error
+       */
+      protected static Object createProxy(Class<?> clazz, String link, Context context) throws Exception
+      {
+         Class<?> proxyClass = getProxyClass(clazz);
          ProxyObject proxy = (ProxyObject) proxyClass.newInstance();
-         proxy.setHandler(new LazyHandler(link, context));
+         proxy.setHandler(new LazyHandler(link, context, getDispatchTable(clazz)));
          return proxy;
       }
    }
 
+   /**
+    * Object factory for lazy refs which produces a generated delegate for business interfaces.
+    *
+    * @see DelegateClassGenerator
+    */
+   public static class DelegateObjectFactory extends LazyObjectFactory
+   {
+      @Override
+      public Object getObjectInstance(Object obj, Name name, Context context, Hashtable<?, ?> hashtable) throws Exception
+      {
+         String link = getLink(obj);
+         if (link == null)
+            return null;
+
+         Class<?> clazz = loadClass((Reference) obj);
+         if (DelegateClassGenerator.isSupported(clazz) == false)
+            return createProxy(clazz, link, context);
+
+         return DelegateClassGenerator.createDelegate(clazz, new LazyHandler(link, context));
+      }
+   }
+
+   /**
+    * Get the dispatch table for a target class, building it on first use.
+    *
+    * @param clazz the interface or class to proxy
+    * @return the dispatch table
+    */
+   protected static DispatchTable getDispatchTable(Class<?> clazz)
+   {
+      DispatchTable table = dispatchTables.get(clazz);
+      if (table != null)
+         return table;
+
+      table = getAttachedDispatchTable(clazz);
+      if (table == null)
+      {
+         // generates the invoker class of the target class, if it can be
+         table = new DispatchTable(clazz);
+         table = attachDispatchTable(clazz, table);
+      }
+      DispatchTable previous = dispatchTables.putIfAbsent(clazz, table);
+      return previous != null ? previous : table;
+   }
+
+   private static DispatchTable getAttachedDispatchTable(Class<?> clazz)
+   {
+      try
+      {
+         return (DispatchTable) InvokerGenerator.getAttachment(clazz);
+      }
+      catch (Exception e)
+      {
+         log.debug("Can't get the dispatch table attached to the invoker of " + clazz, e);
+         return null;
+      }
+   }
+
+   /**
+    * Attach the table to the invoker class of the target class, without one the table is only held
+    * by the proxies using it.
+    *
+    * @return the table attached, which is another one if a concurrent caller attached it first
+    */
+   private static DispatchTable attachDispatchTable(Class<?> clazz, DispatchTable table)
+   {
+      try
+      {
+         DispatchTable attached = (DispatchTable) InvokerGenerator.attach(clazz, table);
+         return attached != null ? attached : table;
+      }
+      catch (Exception e)
+      {
+         log.debug("Can't attach the dispatch table to the invoker of " + clazz, e);
+         return table;
+      }
+   }
+
+   /**
+    * Get the lazy proxy class for a target class, generating it on first use.
+    *
+    * @param clazz the interface or class to proxy
+    * @return the proxy class
+    */
+   protected static Class<?> getProxyClass(Class<?> clazz)
+   {
+      Class<?> proxyClass = proxyClasses.get(clazz);
+      if (proxyClass != null)
+         return proxyClass;
+
+      javassist.util.proxy.ProxyFactory factory = new javassist.util.proxy.ProxyFactory();
+      factory.setFilter(FINALIZE_FILTER);
+      if (clazz.isInterface())
+         factory.setInterfaces(new Class[]{clazz});
+      else
+         factory.setSuperclass(clazz);
+      proxyClass = getProxyClass(factory);
+
+      // a concurrent caller might have beaten us to it, keep a single proxy class per target
+      Class<?> previous = proxyClasses.putIfAbsent(clazz, proxyClass);
+      return previous != null ? previous : proxyClass;
+   }
+
    protected static Class<?> getProxyClass(javassist.util.proxy.ProxyFactory factory)
    {
       SecurityManager sm = System.getSecurityManager();
@@ -109,9 +301,16 @@ public abstract class AbstractLazyProxyFactory implements ProxyFactory
    };
 
    /**
-    * Lazy method handler.
+    * Dispatch table of a lazy proxy.
+    *
+    * Decides once per method whether a call is answered by the handler itself
+    * (toString, equals, hashCode) or delegated to the target. The entries are held by
+    * method index, and the calls to the target go through a {@link InvokerGenerator generated invoker}
+    * which switches on that index, falling back to reflection when no invoker can be generated.
+    * A javassist proxy hands the same Method instances on every call, so the index of a method
+    * is found through an identity lookup, without Method.equals.
     */
-   public static class LazyHandler implements MethodHandler
+   public static class DispatchTable
    {
       private static final Method METHOD_EQUALS;
       private static final Method METHOD_HASH_CODE;
@@ -135,29 +334,331 @@ public abstract class AbstractLazyProxyFactory implements ProxyFactory
          }
       }
 
+      /**
+       * How a method is dispatched.
+       */
+      public static enum Kind
+      {
+         TO_STRING,
+         EQUALS,
+         HASH_CODE,
+         TARGET
+      }
+
+      /**
+       * A dispatch table entry.
+       */
+      public static class Entry
+      {
+         private Kind kind;
+         private Method method;
+         private InvocationHandler invoker;
+
+         Entry(Kind kind, Method method, InvocationHandler invoker)
+         {
+            this.kind = kind;
+            this.method = method;
+            this.invoker = invoker;
+         }
+
+         public Kind getKind()
+         {
+            return kind;
+         }
+
+         public Method getMethod()
+         {
+            return method;
+         }
+
+         /**
+          * Invoke the method on the target. The exceptions of the target are thrown as they are.
+          *
+          * @param target the target
+          * @param args the arguments
+          * @return the result
+          * @throws Throwable the exception of the target
+          */
+         public Object invoke(Object target, Object[] args) throws Throwable
+         {
+            if (invoker != null)
+               return invoker.invoke(target, method, args);
+
+            try
+            {
+               return method.invoke(target, args);
+            }
+            catch (InvocationTargetException e)
+            {
+               throw e.getCause();
+            }
+         }
+      }
+
+      /**
+       * Entries by method index.
+       */
+      private final Entry[] entries;
+
+      /**
+       * Method indexes by method.
+       */
+      private final Map<Method, Integer> indexes = new HashMap<Method, Integer>();
+
+      /**
+       * Entries by the Method instances seen so far, copied on write.
+       */
+      private volatile Map<Method, Entry> known = new IdentityHashMap<Method, Entry>();
+
+      public DispatchTable(Class<?> clazz)
+      {
+         List<Method> methods = new ArrayList<Method>();
+         // interfaces don't report the Object methods, but the proxy does dispatch them
+         if (clazz.isInterface())
+            methods.addAll(Arrays.asList(Object.class.getMethods()));
+         methods.addAll(Arrays.asList(clazz.getMethods()));
+
+         Map<Method, InvocationHandler> invokers = createInvokers(clazz);
+         this.entries = new Entry[methods.size()];
+         for (int i = 0; i < entries.length; i++)
+         {
+            Method method = methods.get(i);
+            entries[i] = createEntry(method, invokers.get(method));
+            indexes.put(method, i);
+         }
+      }
+
+      private static Map<Method, InvocationHandler> createInvokers(Class<?> clazz)
+      {
+         if (InvokerGenerator.isSupported(clazz))
+         {
+            try
+            {
+               return InvokerGenerator.createInvokers(clazz);
+            }
+            catch (Exception e)
+            {
+               log.debug("Can't generate an invoker for " + clazz + ", falling back to reflection", e);
+            }
+         }
+         return Collections.emptyMap();
+      }
+
+      /**
+       * Get the entry for a proxied method.
+       *
+       * @param method the method being invoked on the proxy
+       * @return the dispatch entry
+       */
+      public Entry get(Method method)
+      {
+         Entry entry = known.get(method);
+         if (entry != null)
+            return entry;
+         return learn(method);
+      }
+
+      private synchronized Entry learn(Method method)
+      {
+         Entry entry = known.get(method);
+         if (entry != null)
+            return entry;
+
+         Integer index = indexes.get(method);
+         // not public, so it wasn't known up front
+         entry = index != null ? entries[index] : createEntry(method, null);
+         // callers handing fresh Method instances on each call don't get to grow the table
+         if (known.size() < 2 * entries.length + 16)
+         {
+            Map<Method, Entry> copy = new IdentityHashMap<Method, Entry>(known);
+            copy.put(method, entry);
+            known = copy;
+         }
+         return entry;
+      }
+
+      private static Entry createEntry(Method method, InvocationHandler invoker)
+      {
+         if (method.equals(METHOD_TO_STRING))
+            return new Entry(Kind.TO_STRING, method, null);
+         else if (method.equals(METHOD_EQUALS))
+            return new Entry(Kind.EQUALS, method, null);
+         else if (method.equals(METHOD_HASH_CODE))
+            return new Entry(Kind.HASH_CODE, method, null);
+         if (invoker != null)
+            return new Entry(Kind.TARGET, method, invoker);
+         return new Entry(Kind.TARGET, makeAccessible(method), null);
+      }
+
+      /**
+       * Skip the access check on every invocation, if we're allowed to.
+       */
+      private static Method makeAccessible(final Method method)
+      {
+         try
+         {
+            SecurityManager sm = System.getSecurityManager();
+            if (sm == null)
+               method.setAccessible(true);
+            else
+               AccessController.doPrivileged(new PrivilegedAction<Object>()
+               {
+                  public Object run()
+                  {
+                     method.setAccessible(true);
+                     return null;
+                  }
+               });
+         }
+         catch (SecurityException ignored)
+         {
+            // the access check will be done on each invocation
+         }
+         return method;
+      }
+   }
+
+   /**
+    * Lazy method handler.
+    *
+    * It also serves as the target resolver of generated delegates.
+    */
+   public static class LazyHandler implements MethodHandler, Callable<Object>
+   {
       private String link;
       private Context context;
-      private Object target;
+      private DispatchTable table;
+      private final Object lock = new Object();
+      private volatile Object target;
 
       public LazyHandler(String link, Context context)
+      {
+         this(link, context, null);
+      }
+
+      public LazyHandler(String link, Context context, DispatchTable table)
       {
          this.link = link;
          this.context = context;
+         this.table = table;
       }
 
       public Object invoke(Object self, Method method, Method proceed, Object[] args) throws Throwable
       {
-         if (method.equals(METHOD_TO_STRING))
-            return "JNDI-link: " + link;
-         else if (method.equals(METHOD_EQUALS))
-            return equals(args[0]);
-         else if (method.equals(METHOD_HASH_CODE))
-            return hashCode();
+         DispatchTable.Entry entry = getEntry(method);
+         switch (entry.getKind())
+         {
+            case TO_STRING:
+               return toString();
+            case EQUALS:
+               return equals(args[0]);
+            case HASH_CODE:
+               return hashCode();
+            default:
+               break;
+         }
+
+         Object target = call();
+         // from now on the proxy can go straight to the target
+         if (self instanceof ProxyObject)
+            ((ProxyObject) self).setHandler(new ResolvedHandler(this, target));
+         return entry.invoke(target, args);
+      }
+
+      protected DispatchTable.Entry getEntry(Method method)
+      {
+         return table != null ? table.get(method) : DispatchTable.createEntry(method, null);
+      }
+
+      /**
+       * Get the target for a business call.
+       *
+       * The business methods don't declare NamingException, so a failed lookup is thrown unchecked.
+       *
+       * @return the target
+       * @throws IllegalStateException if the link can't be looked up
+       */
+      public Object call()
+      {
+         try
+         {
+            return getTarget();
+         }
+         catch (NamingException e)
+         {
+            throw new IllegalStateException("Can't resolve the target of " + this, e);
+         }
+      }
+
+      @Override
+      public String toString()
+      {
+         return "JNDI-link: " + link;
+      }
 
-         if (target == null)
-            target = context.lookup(link);
+      /**
+       * Get the target, looking it up on first use.
+       *
+       * Concurrent callers on a cold proxy wait for a single lookup, once the target
+       * is published reads don't take the lock. A failed lookup is retried on the next call.
+       *
+       * @return the target
+       * @throws NamingException if the link can't be looked up
+       */
+      protected Object getTarget() throws NamingException
+      {
+         Object result = target;
+         if (result == null)
+         {
+            synchronized (lock)
+            {
+               result = target;
+               if (result == null)
+               {
+                  result = context.lookup(link);
+                  target = result;
+               }
+            }
+         }
+         return result;
+      }
+   }
 
-         return method.invoke(target, args);
+   /**
+    * Method handler installed on a lazy proxy once its target has been resolved.
+    *
+    * It calls the target through the invoker of the dispatch table, without checking whether
+    * the target is resolved. It keeps answering toString, equals and hashCode through the lazy
+    * handler it replaces, so the identity of the proxy doesn't change when the handlers are swapped.
+    */
+   public static class ResolvedHandler implements MethodHandler
+   {
+      private final LazyHandler lazyHandler;
+      private final DispatchTable table;
+      private final Object target;
+
+      public ResolvedHandler(LazyHandler lazyHandler, Object target)
+      {
+         this.lazyHandler = lazyHandler;
+         this.table = lazyHandler.table;
+         this.target = target;
+      }
+
+      public Object invoke(Object self, Method method, Method proceed, Object[] args) throws Throwable
+      {
+         DispatchTable.Entry entry = table != null ? table.get(method) : lazyHandler.getEntry(method);
+         if (entry.kind == DispatchTable.Kind.TARGET)
+            return entry.invoke(target, args);
+
+         switch (entry.getKind())
+         {
+            case TO_STRING:
+               return lazyHandler.toString();
+            case EQUALS:
+               return lazyHandler.equals(args[0]);
+            default:
+               return lazyHandler.hashCode();
+         }
       }
    }
 
@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameParser;
+import javax.naming.NamingException;
+
+import org.jboss.logging.Logger;
+import org.jboss.util.naming.Util;
+
+/**
+ * A set of objects to bind, grouped by the context they're bound under.
+ * <p>
+ *  Binding the batch has the same outcome as binding each object through {@link Util#bind(Context, String, Object)},
+ *  except that the intermediate subcontexts of the names are looked up (or created) once per batch, 
+ *  and that subcontexts concurrently created by other threads are tolerated.
+ * </p>
+ */
+public class BindingBatch
+{
+   private static final Logger log = Logger.getLogger(BindingBatch.class);
+
+   private Map<Context, List<Entry>> entries = new LinkedHashMap<Context, List<Entry>>();
+
+   /**
+    * Adds an object to bind under the passed context
+    *
+    * @param ctx the context
+    * @param name the name of the object, relative to <code>ctx</code>
+    * @param obj the object to bind
+    */
+   public void add(Context ctx, String name, Object obj)
+   {
+      List<Entry> contextEntries = entries.get(ctx);
+      if(contextEntries == null)
+      {
+         contextEntries = new ArrayList<Entry>();
+         entries.put(ctx, contextEntries);
+      }
+      contextEntries.add(new Entry(name, obj));
+   }
+
+   /**
+    * Binds the objects of the batch, context by context. If an object can't be bound, the objects
+    * bound so far are unbound before the failure is reported.
+    *
+    * @throws NamingException if an object can't be bound
+    */
+   public void bind() throws NamingException
+   {
+      // the subcontexts and atomic names the objects got bound under, for rollback
+      List<Context> boundContexts = new ArrayList<Context>();
+      List<String> boundNames = new ArrayList<String>();
+      boolean done = false;
+      try
+      {
+         for(Map.Entry<Context, List<Entry>> contextEntries : entries.entrySet())
+         {
+            Context ctx = contextEntries.getKey();
+            NameParser parser = ctx.getNameParser("");
+            // the intermediate subcontexts, by name
+            Map<Name, Context> subcontexts = new HashMap<Name, Context>();
+            for(Entry entry : contextEntries.getValue())
+            {
+               if(log.isDebugEnabled())
+                  log.debug("Binding " + entry.obj + " at " + entry.name + " under " + ctx);
+               Name name = parser.parse(entry.name);
+               int size = name.size();
+               Name prefix = name.getPrefix(size - 1);
+               Context subcontext = subcontexts.get(prefix);
+               if(subcontext == null)
+               {
+                  subcontext = NamingUtil.createSubcontext(ctx, prefix);
+                  subcontexts.put(prefix, subcontext);
+               }
+               String atom = name.get(size - 1);
+               subcontext.bind(atom, entry.obj);
+               boundContexts.add(subcontext);
+               boundNames.add(atom);
+            }
+         }
+         done = true;
+      }
+      finally
+      {
+         if(!done)
+         {
+            for(int i = boundNames.size() - 1; i >= 0; i--)
+            {
+               try
+               {
+                  boundContexts.get(i).unbind(boundNames.get(i));
+               }
+               catch(NamingException e)
+               {
+                  log.warn("Failed to unbind " + boundNames.get(i) + " under " + boundContexts.get(i) + " while rolling back a batch", e);
+               }
+            }
+         }
+      }
+   }
+
+   private static class Entry
+   {
+      private final String name;
+      private final Object obj;
+
+      Entry(String name, Object obj)
+      {
+         this.name = name;
+         this.obj = obj;
+      }
+   }
+}
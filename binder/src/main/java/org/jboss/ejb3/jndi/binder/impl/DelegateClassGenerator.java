@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.util.collection.ConcurrentReferenceHashMap;
+import org.jboss.util.collection.ConcurrentReferenceHashMap.ReferenceType;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+/**
+ * Generates lazy delegate classes for business interfaces.
+ *
+ * A delegate class implements the business interface and calls the resolved
+ * target directly from every method, without argument boxing or a reflective call.
+ * The target is obtained from a {@link Callable} on first use, the generated class
+ * only refers to the business interface and JDK types.
+ */
+public class DelegateClassGenerator
+{
+   private static final String SUFFIX = "$$LazyDelegate";
+
+   /**
+    * Delegate classes per business interface.
+    * A class is only cleared once its class loader is gone, so the weak values don't cause regeneration.
+    */
+   private static final ConcurrentMap<Class<?>, Class<?>> delegateClasses = new ConcurrentReferenceHashMap<Class<?>, Class<?>>(ReferenceType.WEAK, ReferenceType.WEAK);
+
+   /**
+    * Can a delegate be generated for the class.
+    * It must be an interface, and not one loaded by the bootstrap class loader, which we can't define classes in.
+    *
+    * @param clazz the class
+    * @return true if a delegate can be generated
+    */
+   public static boolean isSupported(Class<?> clazz)
+   {
+      return clazz.isInterface() && clazz.getClassLoader() != null;
+   }
+
+   /**
+    * Create a delegate for a business interface.
+    *
+    * @param businessInterface the business interface
+    * @param resolver resolves the target on first use
+    * @return the delegate
+    * @throws Exception for any error
+    */
+   public static Object createDelegate(Class<?> businessInterface, Callable<?> resolver) throws Exception
+   {
+      Class<?> delegateClass = getDelegateClass(businessInterface);
+      return delegateClass.getConstructor(Callable.class).newInstance(resolver);
+   }
+
+   /**
+    * Get the delegate class for a business interface, generating it on first use.
+    *
+    * @param businessInterface the business interface
+    * @return the delegate class
+    * @throws Exception for any error
+    */
+   public static Class<?> getDelegateClass(Class<?> businessInterface) throws Exception
+   {
+      if (isSupported(businessInterface) == false)
+         throw new IllegalArgumentException("Can only generate a delegate for an interface with a class loader: " + businessInterface);
+
+      Class<?> delegateClass = delegateClasses.get(businessInterface);
+      if (delegateClass != null)
+         return delegateClass;
+
+      // a class can only be defined once per class loader
+      synchronized (delegateClasses)
+      {
+         delegateClass = delegateClasses.get(businessInterface);
+         if (delegateClass == null)
+         {
+            delegateClass = generate(businessInterface);
+            delegateClasses.put(businessInterface, delegateClass);
+         }
+         return delegateClass;
+      }
+   }
+
+   private static Class<?> generate(final Class<?> businessInterface) throws Exception
+   {
+      ClassPool pool = new ClassPool(true);
+      pool.insertClassPath(new LoaderClassPath(businessInterface.getClassLoader()));
+
+      CtClass iface = pool.get(businessInterface.getName());
+      final CtClass delegate = pool.makeClass(businessInterface.getName() + SUFFIX);
+      delegate.addInterface(iface);
+
+      delegate.addField(CtField.make("private final java.util.concurrent.Callable resolver;", delegate));
+      delegate.addField(CtField.make("private volatile " + iface.getName() + " target;", delegate));
+
+      CtConstructor constructor = CtNewConstructor.make("public " + delegate.getSimpleName() + "(java.util.concurrent.Callable resolver) { this.resolver = resolver; }", delegate);
+      delegate.addConstructor(constructor);
+
+      // the target has been published safely by the resolver, we only cache it;
+      // the business methods don't declare the checked exceptions of the resolver, so those are wrapped
+      delegate.addMethod(CtNewMethod.make("private " + iface.getName() + " lazyDelegateTarget() {"
+            + iface.getName() + " t = this.target;"
+            + "if (t == null) {"
+            + "try { t = (" + iface.getName() + ") resolver.call(); }"
+            + "catch (java.lang.RuntimeException e) { throw e; }"
+            + "catch (java.lang.Exception e) { throw new java.lang.IllegalStateException(\"Can't resolve the target of \" + resolver, e); }"
+            + "this.target = t; }"
+            + "return t; }", delegate));
+
+      Set<String> descriptors = new HashSet<String>();
+      for (Method method : businessInterface.getMethods())
+      {
+         if (Modifier.isStatic(method.getModifiers()))
+            continue;
+
+         CtMethod ctMethod = findMethod(pool, method);
+         // the same method inherited through more than one super interface
+         if (descriptors.add(ctMethod.getName() + ctMethod.getSignature()) == false)
+            continue;
+
+         String body;
+         if (method.getReturnType() == void.class)
+            body = "{ lazyDelegateTarget()." + method.getName() + "($$); }";
+         else
+            body = "{ return ($r) lazyDelegateTarget()." + method.getName() + "($$); }";
+         CtMethod impl = CtNewMethod.make(ctMethod.getReturnType(), ctMethod.getName(), ctMethod.getParameterTypes(), ctMethod.getExceptionTypes(), body, delegate);
+         // covariant returns need a method per return type, which CtClass.addMethod rejects
+         delegate.getClassFile().addMethod2(impl.getMethodInfo());
+      }
+
+      // unless the business interface redeclares it
+      if (descriptors.add("toString()Ljava/lang/String;"))
+         delegate.addMethod(CtNewMethod.make("public String toString() { return resolver.toString(); }", delegate));
+
+      try
+      {
+         SecurityManager sm = System.getSecurityManager();
+         if (sm == null)
+            return delegate.toClass(businessInterface.getClassLoader(), businessInterface.getProtectionDomain());
+         else
+            return AccessController.doPrivileged(new PrivilegedExceptionAction<Class<?>>()
+            {
+               public Class<?> run() throws CannotCompileException
+               {
+                  return delegate.toClass(businessInterface.getClassLoader(), businessInterface.getProtectionDomain());
+               }
+            });
+      }
+      finally
+      {
+         delegate.detach();
+      }
+   }
+
+   private static CtMethod findMethod(ClassPool pool, Method method) throws NotFoundException
+   {
+      CtClass declaringClass = pool.get(method.getDeclaringClass().getName());
+      return declaringClass.getMethod(method.getName(), Descriptors.descriptor(method));
+   }
+}
@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.lang.reflect.Method;
+
+/**
+ * JVM type descriptors, as used by the generated classes.
+ */
+class Descriptors
+{
+   private Descriptors()
+   {
+   }
+
+   /**
+    * Get the descriptor of a method, e.g. <code>(ILjava/lang/String;)V</code>.
+    *
+    * @param method the method
+    * @return the method descriptor
+    */
+   static String descriptor(Method method)
+   {
+      StringBuilder descriptor = new StringBuilder("(");
+      for (Class<?> parameterType : method.getParameterTypes())
+         descriptor.append(descriptor(parameterType));
+      return descriptor.append(")").append(descriptor(method.getReturnType())).toString();
+   }
+
+   /**
+    * Get the descriptor of a type, e.g. <code>I</code> or <code>Ljava/lang/String;</code>.
+    *
+    * @param type the type
+    * @return the type descriptor
+    */
+   static String descriptor(Class<?> type)
+   {
+      if (type.isArray())
+         return type.getName().replace('.', '/');
+      if (type.isPrimitive() == false)
+         return "L" + type.getName().replace('.', '/') + ";";
+      if (type == void.class)
+         return "V";
+      if (type == boolean.class)
+         return "Z";
+      if (type == byte.class)
+         return "B";
+      if (type == char.class)
+         return "C";
+      if (type == short.class)
+         return "S";
+      if (type == int.class)
+         return "I";
+      if (type == long.class)
+         return "J";
+      if (type == float.class)
+         return "F";
+      return "D";
+   }
+}
@@ -0,0 +1,359 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.util.collection.ConcurrentReferenceHashMap;
+import org.jboss.util.collection.ConcurrentReferenceHashMap.ReferenceType;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewConstructor;
+import javassist.LoaderClassPath;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.ExceptionsAttribute;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * Generates invokers which call the methods of a target class directly.
+ *
+ * One class is generated per target class. Its instances are bound to a method index
+ * and their {@link InvocationHandler#invoke(Object, Method, Object[])} calls the method
+ * with that index on the target passed as first argument: a tableswitch, unboxing of the
+ * arguments and a plain virtual call, instead of {@link Method#invoke(Object, Object...)}.
+ * The exceptions of the target are thrown as they are. The generated class only refers
+ * to the target class and JDK types.
+ *
+ * The generated class lives as long as the class loader of the target class, so it can also
+ * hold an attachment, such as the dispatch table of the target class, for that long.
+ */
+public class InvokerGenerator
+{
+   private static final String SUFFIX = "$$LazyInvoker";
+
+   /**
+    * The static field of the generated class holding its attachment.
+    */
+   private static final String ATTACHMENT = "attachment";
+
+   /**
+    * Invoker classes per target class, held weakly for the same reason as the delegate classes.
+    */
+   private static final ConcurrentMap<Class<?>, Class<?>> invokerClasses = new ConcurrentReferenceHashMap<Class<?>, Class<?>>(ReferenceType.WEAK, ReferenceType.WEAK);
+
+   /**
+    * Can invokers be generated for the target class.
+    * The class must be public, and not loaded by the bootstrap class loader, which we can't define classes in.
+    *
+    * @param clazz the target class
+    * @return true if invokers can be generated
+    */
+   public static boolean isSupported(Class<?> clazz)
+   {
+      return Modifier.isPublic(clazz.getModifiers()) && clazz.getClassLoader() != null && clazz.isArray() == false && clazz.isPrimitive() == false;
+   }
+
+   /**
+    * Create the invokers of the public, overridable methods of a target class.
+    *
+    * @param clazz the target class
+    * @return the invokers, by method
+    * @throws Exception for any error
+    */
+   public static Map<Method, InvocationHandler> createInvokers(Class<?> clazz) throws Exception
+   {
+      if (isSupported(clazz) == false)
+         throw new IllegalArgumentException("Can't generate an invoker for " + clazz);
+
+      Method[] methods = getMethods(clazz);
+      if (methods.length == 0)
+         return Collections.emptyMap();
+
+      Constructor<?> constructor = getInvokerClass(clazz, methods).getConstructor(int.class);
+      Map<Method, InvocationHandler> invokers = new HashMap<Method, InvocationHandler>();
+      for (int i = 0; i < methods.length; i++)
+         invokers.put(methods[i], (InvocationHandler) constructor.newInstance(i));
+      return invokers;
+   }
+
+   /**
+    * Get the object attached to the invoker class of a target class.
+    *
+    * @param clazz the target class
+    * @return the attachment, or null if there's none or no invoker class has been generated
+    * @throws Exception for any error
+    */
+   public static Object getAttachment(Class<?> clazz) throws Exception
+   {
+      Class<?> invokerClass = invokerClasses.get(clazz);
+      if (invokerClass == null)
+         return null;
+      return invokerClass.getField(ATTACHMENT).get(null);
+   }
+
+   /**
+    * Attach an object to the invoker class of a target class, unless one is attached already.
+    *
+    * @param clazz the target class
+    * @param attachment the object to attach
+    * @return the object attached, or null if no invoker class has been generated
+    * @throws Exception for any error
+    */
+   public static Object attach(Class<?> clazz, Object attachment) throws Exception
+   {
+      Class<?> invokerClass = invokerClasses.get(clazz);
+      if (invokerClass == null)
+         return null;
+      Field field = invokerClass.getField(ATTACHMENT);
+      synchronized (invokerClass)
+      {
+         Object attached = field.get(null);
+         if (attached != null)
+            return attached;
+         field.set(null, attachment);
+         return attachment;
+      }
+   }
+
+   /**
+    * The methods a proxy can dispatch, in a stable order, which gives their index in the invoker class.
+    */
+   private static Method[] getMethods(Class<?> clazz)
+   {
+      List<Method> methods = new ArrayList<Method>();
+      for (Method method : clazz.getMethods())
+      {
+         int modifiers = method.getModifiers();
+         if (Modifier.isStatic(modifiers) == false && Modifier.isFinal(modifiers) == false)
+            methods.add(method);
+      }
+      Collections.sort(methods, new Comparator<Method>()
+      {
+         public int compare(Method m1, Method m2)
+         {
+            return m1.toString().compareTo(m2.toString());
+         }
+      });
+      return methods.toArray(new Method[methods.size()]);
+   }
+
+   private static Class<?> getInvokerClass(Class<?> clazz, Method[] methods) throws Exception
+   {
+      Class<?> invokerClass = invokerClasses.get(clazz);
+      if (invokerClass != null)
+         return invokerClass;
+
+      // a class can only be defined once per class loader
+      synchronized (invokerClasses)
+      {
+         invokerClass = invokerClasses.get(clazz);
+         if (invokerClass == null)
+         {
+            invokerClass = generate(clazz, methods);
+            invokerClasses.put(clazz, invokerClass);
+         }
+         return invokerClass;
+      }
+   }
+
+   private static Class<?> generate(final Class<?> clazz, Method[] methods) throws Exception
+   {
+      ClassPool pool = new ClassPool(true);
+      pool.insertClassPath(new LoaderClassPath(clazz.getClassLoader()));
+
+      final CtClass invoker = pool.makeClass(clazz.getName() + SUFFIX);
+      invoker.addInterface(pool.get(InvocationHandler.class.getName()));
+      invoker.addField(CtField.make("private final int index;", invoker));
+      invoker.addField(CtField.make("public static volatile Object " + ATTACHMENT + ";", invoker));
+      invoker.addConstructor(CtNewConstructor.make("public " + invoker.getSimpleName() + "(int index) { this.index = index; }", invoker));
+
+      // written as bytecode, so the compiler doesn't need to look up the boxing methods
+      ClassFile classFile = invoker.getClassFile();
+      ConstPool constPool = classFile.getConstPool();
+      Bytecode code = new Bytecode(constPool, 0, 4);
+      // switch (this.index)
+      code.addAload(0);
+      code.addGetfield(invoker, "index", "I");
+      int switchPc = code.currentPc();
+      code.addOpcode(Opcode.TABLESWITCH);
+      while (code.currentPc() % 4 != 0)
+         code.add(0);
+      int defaultPc = code.currentPc();
+      code.addGap(4);
+      code.add32bit(0);
+      code.add32bit(methods.length - 1);
+      int offsetsPc = code.currentPc();
+      code.addGap(4 * methods.length);
+
+      int maxStack = 3;
+      for (int i = 0; i < methods.length; i++)
+      {
+         code.write32bit(offsetsPc + 4 * i, code.currentPc() - switchPc);
+         maxStack = Math.max(maxStack, addCall(code, clazz, methods[i]));
+      }
+
+      // default: throw new IllegalStateException(...)
+      code.write32bit(defaultPc, code.currentPc() - switchPc);
+      code.addNew(IllegalStateException.class.getName());
+      code.addOpcode(Opcode.DUP);
+      code.addLdc("No such method index in " + invoker.getName());
+      code.addInvokespecial(IllegalStateException.class.getName(), "<init>", "(Ljava/lang/String;)V");
+      code.addOpcode(Opcode.ATHROW);
+      code.setMaxStack(maxStack);
+
+      MethodInfo invoke = new MethodInfo(constPool, "invoke", "(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;");
+      invoke.setAccessFlags(AccessFlag.PUBLIC);
+      invoke.setCodeAttribute(code.toCodeAttribute());
+      ExceptionsAttribute exceptions = new ExceptionsAttribute(constPool);
+      exceptions.setExceptions(new String[]{Throwable.class.getName()});
+      invoke.setExceptionsAttribute(exceptions);
+      classFile.addMethod(invoke);
+
+      try
+      {
+         SecurityManager sm = System.getSecurityManager();
+         if (sm == null)
+            return invoker.toClass(clazz.getClassLoader(), clazz.getProtectionDomain());
+         else
+            return AccessController.doPrivileged(new PrivilegedExceptionAction<Class<?>>()
+            {
+               public Class<?> run() throws CannotCompileException
+               {
+                  return invoker.toClass(clazz.getClassLoader(), clazz.getProtectionDomain());
+               }
+            });
+      }
+      finally
+      {
+         invoker.detach();
+      }
+   }
+
+   /**
+    * Add <code>return ((Target) target).method(args[0], ...);</code> with the arguments unboxed and the result boxed.
+    *
+    * @return the max stack of the call
+    */
+   private static int addCall(Bytecode code, Class<?> clazz, Method method)
+   {
+      code.addAload(1);
+      code.addCheckcast(clazz.getName());
+      int stack = 1;
+      int maxStack = 1;
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      for (int p = 0; p < parameterTypes.length; p++)
+      {
+         code.addAload(3);
+         code.addIconst(p);
+         code.addOpcode(Opcode.AALOAD);
+         maxStack = Math.max(maxStack, stack + 2);
+         addUnbox(code, parameterTypes[p]);
+         stack += slots(parameterTypes[p]);
+         maxStack = Math.max(maxStack, stack);
+      }
+
+      String descriptor = Descriptors.descriptor(method);
+      if (clazz.isInterface())
+         code.addInvokeinterface(clazz.getName(), method.getName(), descriptor, stack);
+      else
+         code.addInvokevirtual(clazz.getName(), method.getName(), descriptor);
+
+      Class<?> returnType = method.getReturnType();
+      if (returnType == void.class)
+         code.addOpcode(Opcode.ACONST_NULL);
+      else
+         addBox(code, returnType);
+      code.addOpcode(Opcode.ARETURN);
+      return Math.max(maxStack, Math.max(1, slots(returnType)));
+   }
+
+   // Method.invoke widens the primitives, e.g. it takes an Integer for a long
+   private static void addUnbox(Bytecode code, Class<?> type)
+   {
+      if (type.isPrimitive() == false)
+         code.addCheckcast(type.getName());
+      else if (type == boolean.class)
+         addUnbox(code, Boolean.class, "booleanValue", "()Z");
+      else if (type == char.class)
+         addUnbox(code, Character.class, "charValue", "()C");
+      else
+         addUnbox(code, Number.class, type.getName() + "Value", "()" + Descriptors.descriptor(type));
+   }
+
+   private static void addUnbox(Bytecode code, Class<?> wrapper, String method, String descriptor)
+   {
+      code.addCheckcast(wrapper.getName());
+      code.addInvokevirtual(wrapper.getName(), method, descriptor);
+   }
+
+   private static void addBox(Bytecode code, Class<?> type)
+   {
+      if (type.isPrimitive() == false)
+         return;
+      Class<?> wrapper;
+      if (type == boolean.class)
+         wrapper = Boolean.class;
+      else if (type == char.class)
+         wrapper = Character.class;
+      else if (type == byte.class)
+         wrapper = Byte.class;
+      else if (type == short.class)
+         wrapper = Short.class;
+      else if (type == int.class)
+         wrapper = Integer.class;
+      else if (type == long.class)
+         wrapper = Long.class;
+      else if (type == float.class)
+         wrapper = Float.class;
+      else
+         wrapper = Double.class;
+      code.addInvokestatic(wrapper.getName(), "valueOf", "(" + Descriptors.descriptor(type) + ")" + Descriptors.descriptor(wrapper));
+   }
+
+   private static int slots(Class<?> type)
+   {
+      if (type == void.class)
+         return 0;
+      return type == long.class || type == double.class ? 2 : 1;
+   }
+}
@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NameParser;
+import javax.naming.NamingException;
+
+import org.jboss.util.naming.Util;
+
+/**
+ * Naming helpers which, unlike {@link Util}, can be used by several threads binding
+ * under the same parent contexts.
+ */
+public class NamingUtil
+{
+   private NamingUtil()
+   {
+   }
+
+   /**
+    * Binds <code>obj</code> under <code>name</code>, creating the intermediate subcontexts as needed.
+    *
+    * @param ctx the context to bind under
+    * @param name the name of the object, relative to <code>ctx</code>
+    * @param obj the object to bind
+    * @throws NamingException if the object can't be bound
+    */
+   public static void bind(Context ctx, String name, Object obj) throws NamingException
+   {
+      NameParser parser = ctx.getNameParser("");
+      Name n = parser.parse(name);
+      int size = n.size();
+      createSubcontext(ctx, n.getPrefix(size - 1)).bind(n.get(size - 1), obj);
+   }
+
+   /**
+    * Binds <code>obj</code> under <code>name</code>, replacing whatever is bound there, creating the
+    * intermediate subcontexts as needed.
+    *
+    * @param ctx the context to bind under
+    * @param name the name of the object, relative to <code>ctx</code>
+    * @param obj the object to bind
+    * @throws NamingException if the object can't be bound
+    */
+   public static void rebind(Context ctx, String name, Object obj) throws NamingException
+   {
+      NameParser parser = ctx.getNameParser("");
+      Name n = parser.parse(name);
+      int size = n.size();
+      createSubcontext(ctx, n.getPrefix(size - 1)).rebind(n.get(size - 1), obj);
+   }
+
+   /**
+    * Returns the subcontext of <code>ctx</code> with the passed name, creating it and its parents if
+    * needed. A subcontext created concurrently by another thread is looked up instead.
+    *
+    * @param ctx the parent context
+    * @param name the name of the subcontext, relative to <code>ctx</code>
+    * @return the subcontext
+    * @throws NamingException if the subcontext can't be created
+    */
+   public static Context createSubcontext(Context ctx, Name name) throws NamingException
+   {
+      Context subctx = ctx;
+      for (int pos = 0; pos < name.size(); pos++)
+      {
+         String ctxName = name.get(pos);
+         try
+         {
+            subctx = (Context) subctx.lookup(ctxName);
+         }
+         catch (NameNotFoundException e)
+         {
+            try
+            {
+               subctx = subctx.createSubcontext(ctxName);
+            }
+            catch (NameAlreadyBoundException race)
+            {
+               // created in the meantime
+               subctx = (Context) subctx.lookup(ctxName);
+            }
+         }
+      }
+      return subctx;
+   }
+}
@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.test.naming;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.naming.CompositeName;
+import javax.naming.Context;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+
+import org.jboss.ejb3.jndi.binder.impl.NamingUtil;
+import org.junit.Test;
+
+/**
+ * Tests the naming helpers of {@link NamingUtil}.
+ */
+public class NamingUtilTestCase
+{
+   /**
+    * Tests that a subcontext created by another thread, between the failed lookup and the
+    * creation, is looked up instead
+    */
+   @Test
+   public void testSubcontextCreatedConcurrently() throws Exception
+   {
+      Context ctx = mock(Context.class);
+      Context app = mock(Context.class);
+      Context module = mock(Context.class);
+      when(ctx.lookup("app")).thenThrow(new NameNotFoundException("app")).thenReturn(app);
+      when(ctx.createSubcontext("app")).thenThrow(new NameAlreadyBoundException("app"));
+      when(app.lookup("module")).thenThrow(new NameNotFoundException("module"));
+      when(app.createSubcontext("module")).thenReturn(module);
+
+      assertSame(module, NamingUtil.createSubcontext(ctx, new CompositeName("app/module")));
+      verify(ctx).createSubcontext("app");
+      verify(app).createSubcontext("module");
+   }
+
+   /**
+    * Tests that existing subcontexts are looked up, not created
+    */
+   @Test
+   public void testExistingSubcontext() throws Exception
+   {
+      Context ctx = mock(Context.class);
+      Context app = mock(Context.class);
+      when(ctx.lookup("app")).thenReturn(app);
+
+      assertSame(app, NamingUtil.createSubcontext(ctx, new CompositeName("app")));
+      verify(ctx, never()).createSubcontext("app");
+   }
+}
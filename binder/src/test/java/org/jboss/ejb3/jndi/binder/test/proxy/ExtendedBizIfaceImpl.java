@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.test.proxy;
+
+import java.util.concurrent.Callable;
+
+/**
+ */
+public class ExtendedBizIfaceImpl extends BizIfaceImpl implements ExtendedBizIface, Callable<String>
+{
+   private static final long serialVersionUID = 1L;
+
+   public long add(long x, long y)
+   {
+      return x + y;
+   }
+
+   public int add(int x, int y)
+   {
+      return -(x + y);
+   }
+
+   public String[] split(String s)
+   {
+      return s.split(",");
+   }
+
+   public void fail(String message) throws BizException
+   {
+      throw new BizException(message);
+   }
+
+   public String call()
+   {
+      return "called";
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ExtendedBizIfaceImpl";
+   }
+}
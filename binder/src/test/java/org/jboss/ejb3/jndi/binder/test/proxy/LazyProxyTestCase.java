@@ -23,11 +23,23 @@
 package org.jboss.ejb3.jndi.binder.test.proxy;
 
 import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
 import javax.naming.Reference;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.jboss.ejb3.jndi.binder.impl.AbstractLazyProxyFactory;
 import org.jboss.ejb3.jndi.binder.test.common.AbstractNamingTestCase;
 
+import javassist.util.proxy.ProxyObject;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -71,4 +83,269 @@ public class LazyProxyTestCase extends AbstractNamingTestCase
       Assert.assertEquals(30, bii.calculate(3));
       Assert.assertTrue(TrackingOF.hit);
    }
+
+   @Test
+   public void testProxyClassReuse() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), TrackingOF.class.getName(), null);
+      context.bind("old-reuse", ref);
+
+      context.bind("reuse-1", factory.lazyLinkRef(BizIface.class.getName(), "old-reuse"));
+      context.bind("reuse-2", factory.lazyLinkRef(BizIface.class.getName(), "old-reuse"));
+      Object first = context.lookup("reuse-1");
+      Object second = context.lookup("reuse-2");
+      Assert.assertNotSame(first, second);
+      Assert.assertSame(first.getClass(), second.getClass());
+      Assert.assertSame(first.getClass(), context.lookup("reuse-1").getClass());
+      Assert.assertEquals(20, ((BizIface) second).calculate(2));
+   }
+
+   @Test
+   public void testObjectMethods() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), TrackingOF.class.getName(), null);
+      context.bind("old-object", ref);
+
+      context.bind("object-test", factory.lazyLinkRef(BizIface.class.getName(), "old-object"));
+      TrackingOF.hit = false;
+      Object object = context.lookup("object-test");
+      // answered by the proxy itself, without resolving the link
+      Assert.assertEquals("JNDI-link: old-object", object.toString());
+      Assert.assertEquals(object.hashCode(), object.hashCode());
+      Assert.assertFalse(object.equals(context.lookup("object-test")));
+      Assert.assertFalse(TrackingOF.hit);
+      Assert.assertEquals(40, ((BizIface) object).calculate(4));
+      Assert.assertTrue(TrackingOF.hit);
+   }
+
+   @Test
+   public void testConcurrentResolution() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null);
+      context.bind("old-concurrent", ref);
+
+      context.bind("concurrent-test", factory.lazyLinkRef(BizIface.class.getName(), "old-concurrent"));
+      final BizIface bi = (BizIface) context.lookup("concurrent-test");
+      CountingOF.count.set(0);
+
+      int threads = 8;
+      final CountDownLatch start = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try
+      {
+         List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+         for (int i = 0; i < threads; i++)
+         {
+            results.add(executor.submit(new Callable<Integer>()
+            {
+               public Integer call() throws Exception
+               {
+                  start.await();
+                  return bi.calculate(5);
+               }
+            }));
+         }
+         start.countDown();
+         for (Future<Integer> result : results)
+            Assert.assertEquals(50, result.get().intValue());
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+      Assert.assertEquals(1, CountingOF.count.get());
+   }
+
+   @Test
+   public void testResolvedHandler() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), TrackingOF.class.getName(), null);
+      context.bind("old-resolved", ref);
+
+      context.bind("resolved-test", factory.lazyLinkRef(BizIface.class.getName(), "old-resolved"));
+      Object object = context.lookup("resolved-test");
+      ProxyObject proxy = (ProxyObject) object;
+      Assert.assertTrue(proxy.getHandler() instanceof AbstractLazyProxyFactory.LazyHandler);
+      int hashCode = object.hashCode();
+
+      Assert.assertEquals(60, ((BizIface) object).calculate(6));
+      Assert.assertTrue(proxy.getHandler() instanceof AbstractLazyProxyFactory.ResolvedHandler);
+      Assert.assertEquals(70, ((BizIface) object).calculate(7));
+      // the identity of the proxy survives the swap
+      Assert.assertEquals(hashCode, object.hashCode());
+      Assert.assertEquals("JNDI-link: old-resolved", object.toString());
+   }
+
+   @Test
+   public void testInvoker() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      Reference ref = new Reference(ExtendedBizIfaceImpl.class.getName(), InstanceOF.class.getName(), null);
+      context.bind("old-invoker", ref);
+
+      context.bind("invoker-test", factory.lazyLinkRef(ExtendedBizIface.class.getName(), "old-invoker"));
+      ExtendedBizIface bi = (ExtendedBizIface) context.lookup("invoker-test");
+      // the first call goes through the lazy handler, the others through the resolved handler
+      for (int i = 0; i < 2; i++)
+      {
+         Assert.assertEquals(30, bi.calculate(3));
+         Assert.assertEquals(5L, bi.add(2L, 3L));
+         Assert.assertEquals(-5, bi.add(2, 3));
+         Assert.assertArrayEquals(new String[]{"a", "b"}, bi.split("a,b"));
+         try
+         {
+            bi.fail("expected");
+            Assert.fail("Expected a BizException");
+         }
+         catch (BizException e)
+         {
+            // thrown as is, not wrapped in an InvocationTargetException
+            Assert.assertEquals("expected", e.getMessage());
+         }
+      }
+      // the calls went through a generated invoker
+      Class<?> invokerClass = Class.forName(ExtendedBizIface.class.getName() + "$$LazyInvoker", false, ExtendedBizIface.class.getClassLoader());
+      // which keeps the dispatch table alive for as long as the class loader, not just while a proxy uses it
+      Object table = invokerClass.getField("attachment").get(null);
+      Assert.assertTrue(table instanceof AbstractLazyProxyFactory.DispatchTable);
+      bi = null;
+      System.gc();
+      ExtendedBizIface other = (ExtendedBizIface) context.lookup("invoker-test");
+      Assert.assertEquals(40, other.calculate(4));
+      Assert.assertSame(table, invokerClass.getField("attachment").get(null));
+   }
+
+   @Test
+   public void testDirectDelegate() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setDirectDelegate(true);
+      Context context = createContext();
+
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), TrackingOF.class.getName(), null);
+      context.bind("old-direct", ref);
+
+      // interface, served by a generated delegate
+      context.bind("direct-test", factory.lazyLinkRef(BizIface.class.getName(), "old-direct"));
+      TrackingOF.hit = false;
+      Object object = context.lookup("direct-test");
+      Assert.assertTrue(object instanceof BizIface);
+      Assert.assertFalse(object instanceof ProxyObject);
+      Assert.assertEquals("JNDI-link: old-direct", object.toString());
+      Assert.assertFalse(TrackingOF.hit);
+      Assert.assertEquals(20, ((BizIface) object).calculate(2));
+      Assert.assertTrue(TrackingOF.hit);
+      Assert.assertSame(object.getClass(), context.lookup("direct-test").getClass());
+
+      // class, still served by a javassist proxy
+      context.bind("direct-impl-test", factory.lazyLinkRef(BizIfaceImpl.class.getName(), "old-direct"));
+      object = context.lookup("direct-impl-test");
+      Assert.assertTrue(object instanceof ProxyObject);
+      Assert.assertEquals(30, ((BizIfaceImpl) object).calculate(3));
+   }
+
+   /**
+    * A failed lookup of the target reaches the callers of a lazy proxy as an IllegalStateException,
+    * with the NamingException as its cause, since business methods don't declare it.
+    */
+   @Test
+   public void testLookupFailure() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      context.bind("failure-test", factory.lazyLinkRef(BizIface.class.getName(), "old-failure"));
+      BizIface bi = (BizIface) context.lookup("failure-test");
+      Assert.assertTrue(bi instanceof ProxyObject);
+      try
+      {
+         bi.calculate(2);
+         Assert.fail("Expected an IllegalStateException");
+      }
+      catch (IllegalStateException e)
+      {
+         Assert.assertTrue(e.getCause() instanceof NameNotFoundException);
+      }
+
+      // the failure isn't remembered, the target is looked up again
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), TrackingOF.class.getName(), null);
+      context.bind("old-failure", ref);
+      Assert.assertEquals(20, bi.calculate(2));
+   }
+
+   @Test
+   public void testDirectDelegateLookupFailure() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setDirectDelegate(true);
+      Context context = createContext();
+
+      context.bind("direct-failure-test", factory.lazyLinkRef(BizIface.class.getName(), "old-direct-failure"));
+      BizIface bi = (BizIface) context.lookup("direct-failure-test");
+      Assert.assertFalse(bi instanceof ProxyObject);
+      try
+      {
+         bi.calculate(2);
+         Assert.fail("Expected an IllegalStateException");
+      }
+      catch (IllegalStateException e)
+      {
+         // the business method doesn't declare the NamingException
+         Assert.assertTrue(e.getCause() instanceof NamingException);
+      }
+
+      // a failed lookup is retried on the next call
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), InstanceOF.class.getName(), null);
+      context.bind("old-direct-failure", ref);
+      Assert.assertEquals(20, bi.calculate(2));
+   }
+
+   @Test
+   public void testDirectDelegateRedeclaredToString() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setDirectDelegate(true);
+      Context context = createContext();
+
+      Reference ref = new Reference(ExtendedBizIfaceImpl.class.getName(), InstanceOF.class.getName(), null);
+      context.bind("old-direct-to-string", ref);
+
+      context.bind("direct-to-string-test", factory.lazyLinkRef(ExtendedBizIface.class.getName(), "old-direct-to-string"));
+      Object object = context.lookup("direct-to-string-test");
+      Assert.assertFalse(object instanceof ProxyObject);
+      // the business interface declares it, so it's delegated to the target
+      Assert.assertEquals("ExtendedBizIfaceImpl", object.toString());
+      Assert.assertEquals(5L, ((ExtendedBizIface) object).add(2L, 3L));
+   }
+
+   @Test
+   public void testDirectDelegateBootstrapInterface() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setDirectDelegate(true);
+      Context context = createContext();
+
+      Reference ref = new Reference(ExtendedBizIfaceImpl.class.getName(), InstanceOF.class.getName(), null);
+      context.bind("old-direct-bootstrap", ref);
+
+      // no delegate can be defined next to a JDK interface, a javassist proxy is used instead
+      context.bind("direct-bootstrap-test", factory.lazyLinkRef(Callable.class.getName(), "old-direct-bootstrap"));
+      Object object = context.lookup("direct-bootstrap-test");
+      Assert.assertTrue(object instanceof ProxyObject);
+      Assert.assertEquals("called", ((Callable<?>) object).call());
+   }
 }
@@ -23,12 +23,26 @@ package org.jboss.ejb3.jndi.binder.test.simple;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
 import java.lang.reflect.InvocationHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EventListener;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import javax.naming.Context;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 
 import org.jboss.ejb3.jndi.binder.EJBBinder;
@@ -195,4 +209,373 @@ public class SimpleTestCase extends AbstractNamingTestCase
          binder.unbind();
       }
    }
+
+   /**
+    * Tests that binding in a batch binds the same names as binding one by one
+    */
+   @Test
+   public void testBatchBind() throws Exception
+   {
+      JavaEEApplication app = mock(JavaEEApplication.class);
+      doReturn("batchApp").when(app).getName();
+      doReturn(createContext()).when(app).getContext();
+      doReturn(true).when(app).isEnterpriseApplicationArchive();
+      JavaEEModule module = mock(JavaEEModule.class);
+      doReturn("testModule").when(module).getName();
+      doReturn(createContext()).when(module).getContext();
+      doReturn(app).when(module).getApplication();
+      SessionBeanType bean = mock(SessionBeanType.class);
+      doReturn("TestBean").when(bean).getName();
+      doReturn(module).when(bean).getModule();
+      doReturn(asList(InvocationHandler.class)).when(bean).getBusinessLocals();
+      doReturn(asList(EventListener.class)).when(bean).getBusinessRemotes();
+      EJBBinder binder = new EJBBinder(bean);
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.setBatchBind(true);
+      binder.bind();
+      try
+      {
+         String expected = "TestBean#" + InvocationHandler.class.getName();
+         assertEquals(expected, javaGlobal.lookup("batchApp/testModule/TestBean!" + InvocationHandler.class.getName()));
+         assertEquals(expected, app.getContext().lookup("testModule/TestBean!" + InvocationHandler.class.getName()));
+         assertEquals(expected, module.getContext().lookup("TestBean!" + InvocationHandler.class.getName()));
+
+         expected = "TestBean#" + EventListener.class.getName();
+         assertEquals(expected, javaGlobal.lookup("batchApp/testModule/TestBean!" + EventListener.class.getName()));
+         assertEquals(expected, app.getContext().lookup("testModule/TestBean!" + EventListener.class.getName()));
+         assertEquals(expected, module.getContext().lookup("TestBean!" + EventListener.class.getName()));
+      }
+      finally
+      {
+         binder.unbind();
+      }
+   }
+
+   /**
+    * Tests that binders of several beans can bind concurrently under the same app and module
+    * subcontexts, which the first of them to get there creates
+    */
+   @Test
+   public void testConcurrentBind() throws Exception
+   {
+      JavaEEApplication app = mock(JavaEEApplication.class);
+      doReturn("concurrentApp").when(app).getName();
+      doReturn(createContext()).when(app).getContext();
+      doReturn(true).when(app).isEnterpriseApplicationArchive();
+      JavaEEModule module = mock(JavaEEModule.class);
+      doReturn("testModule").when(module).getName();
+      doReturn(createContext()).when(module).getContext();
+      doReturn(app).when(module).getApplication();
+      final List<EJBBinder> binders = new ArrayList<EJBBinder>();
+      for (int i = 0; i < 8; i++)
+      {
+         SessionBeanType bean = mock(SessionBeanType.class);
+         doReturn("TestBean" + i).when(bean).getName();
+         doReturn(module).when(bean).getModule();
+         doReturn(asList(InvocationHandler.class)).when(bean).getBusinessLocals();
+         doReturn(asList(EventListener.class)).when(bean).getBusinessRemotes();
+         EJBBinder binder = new EJBBinder(bean);
+         binder.setGlobalContext(javaGlobal);
+         binder.setProxyFactory(new MyProxyFactory());
+         binders.add(binder);
+      }
+
+      final CyclicBarrier start = new CyclicBarrier(binders.size());
+      List<Future<?>> binds = new ArrayList<Future<?>>();
+      ExecutorService executor = Executors.newFixedThreadPool(binders.size());
+      try
+      {
+         for (final EJBBinder binder : binders)
+         {
+            binds.add(executor.submit(new Callable<Void>()
+            {
+               public Void call() throws Exception
+               {
+                  start.await();
+                  binder.bind();
+                  return null;
+               }
+            }));
+         }
+         // a failure to bind is thrown from here
+         for (Future<?> bind : binds)
+            bind.get(30, TimeUnit.SECONDS);
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+
+      try
+      {
+         for (int i = 0; i < binders.size(); i++)
+         {
+            String expected = "TestBean" + i + "#" + InvocationHandler.class.getName();
+            assertEquals(expected, javaGlobal.lookup("concurrentApp/testModule/TestBean" + i + "!" + InvocationHandler.class.getName()));
+            assertEquals(expected, app.getContext().lookup("testModule/TestBean" + i + "!" + InvocationHandler.class.getName()));
+            assertEquals(expected, module.getContext().lookup("TestBean" + i + "!" + InvocationHandler.class.getName()));
+
+            expected = "TestBean" + i + "#" + EventListener.class.getName();
+            assertEquals(expected, javaGlobal.lookup("concurrentApp/testModule/TestBean" + i + "!" + EventListener.class.getName()));
+            assertEquals(expected, app.getContext().lookup("testModule/TestBean" + i + "!" + EventListener.class.getName()));
+            assertEquals(expected, module.getContext().lookup("TestBean" + i + "!" + EventListener.class.getName()));
+         }
+      }
+      finally
+      {
+         for (EJBBinder binder : binders)
+            binder.unbind();
+      }
+   }
+
+   /**
+    * Tests that a failing bind leaves none of the names of the bean bound
+    */
+   @Test
+   public void testBindRollback() throws Exception
+   {
+      JavaEEApplication app = mock(JavaEEApplication.class);
+      doReturn("rollbackApp").when(app).getName();
+      doReturn(createContext()).when(app).getContext();
+      doReturn(true).when(app).isEnterpriseApplicationArchive();
+      JavaEEModule module = mock(JavaEEModule.class);
+      doReturn("testModule").when(module).getName();
+      doReturn(createContext()).when(module).getContext();
+      doReturn(app).when(module).getApplication();
+      SessionBeanType bean = mock(SessionBeanType.class);
+      doReturn("TestBean").when(bean).getName();
+      doReturn(module).when(bean).getModule();
+      doReturn(asList(InvocationHandler.class)).when(bean).getBusinessLocals();
+      doReturn(asList(EventListener.class)).when(bean).getBusinessRemotes();
+
+      // the last name to be bound is already taken
+      module.getContext().bind("TestBean!" + EventListener.class.getName(), "taken");
+
+      for (boolean batchBind : new boolean[] {false, true})
+      {
+         EJBBinder binder = new EJBBinder(bean);
+         binder.setGlobalContext(javaGlobal);
+         binder.setProxyFactory(new MyProxyFactory());
+         binder.setBatchBind(batchBind);
+         try
+         {
+            binder.bind();
+            fail("Expected a NameAlreadyBoundException");
+         }
+         catch (NameAlreadyBoundException e)
+         {
+            // expected
+         }
+         assertNotBound(javaGlobal, "rollbackApp/testModule/TestBean!" + InvocationHandler.class.getName());
+         assertNotBound(javaGlobal, "rollbackApp/testModule/TestBean!" + EventListener.class.getName());
+         assertNotBound(app.getContext(), "testModule/TestBean!" + InvocationHandler.class.getName());
+         assertNotBound(module.getContext(), "TestBean!" + InvocationHandler.class.getName());
+         assertEquals("taken", module.getContext().lookup("TestBean!" + EventListener.class.getName()));
+      }
+   }
+
+   /**
+    * Tests that rebind only applies the differences with the binder being replaced, so the
+    * changed and unchanged names are all bound once the previous binder is unbound
+    */
+   @Test
+   public void testRebind() throws Exception
+   {
+      JavaEEApplication app = mock(JavaEEApplication.class);
+      doReturn("rebindApp").when(app).getName();
+      doReturn(createContext()).when(app).getContext();
+      doReturn(true).when(app).isEnterpriseApplicationArchive();
+      JavaEEModule module = mock(JavaEEModule.class);
+      doReturn("testModule").when(module).getName();
+      doReturn(createContext()).when(module).getContext();
+      doReturn(app).when(module).getApplication();
+      SessionBeanType bean = mock(SessionBeanType.class);
+      doReturn("TestBean").when(bean).getName();
+      doReturn(module).when(bean).getModule();
+      doReturn(asList(InvocationHandler.class)).when(bean).getBusinessLocals();
+      doReturn(asList(EventListener.class, Comparable.class)).when(bean).getBusinessRemotes();
+      EJBBinder previous = new EJBBinder(bean);
+      previous.setGlobalContext(javaGlobal);
+      previous.setProxyFactory(new MyProxyFactory());
+      previous.bind();
+
+      // the redeployed bean replaces a remote view, and gets another proxy for its local view
+      SessionBeanType redeployed = mock(SessionBeanType.class);
+      doReturn("TestBean").when(redeployed).getName();
+      doReturn(module).when(redeployed).getModule();
+      doReturn(asList(InvocationHandler.class)).when(redeployed).getBusinessLocals();
+      doReturn(asList(EventListener.class, Runnable.class)).when(redeployed).getBusinessRemotes();
+      EJBBinder binder = new EJBBinder(redeployed);
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory()
+      {
+         @Override
+         public Object produce(View view)
+         {
+            Object proxy = super.produce(view);
+            return view.getBusinessInterface() == InvocationHandler.class ? proxy + "@2" : proxy;
+         }
+      });
+      binder.rebind(previous);
+      try
+      {
+         // previous doesn't own the names anymore
+         previous.unbind();
+
+         // changed
+         String expected = "TestBean#" + InvocationHandler.class.getName() + "@2";
+         assertEquals(expected, javaGlobal.lookup("rebindApp/testModule/TestBean!" + InvocationHandler.class.getName()));
+         assertEquals(expected, app.getContext().lookup("testModule/TestBean!" + InvocationHandler.class.getName()));
+         assertEquals(expected, module.getContext().lookup("TestBean!" + InvocationHandler.class.getName()));
+
+         // unchanged
+         expected = "TestBean#" + EventListener.class.getName();
+         assertEquals(expected, javaGlobal.lookup("rebindApp/testModule/TestBean!" + EventListener.class.getName()));
+         assertEquals(expected, app.getContext().lookup("testModule/TestBean!" + EventListener.class.getName()));
+         assertEquals(expected, module.getContext().lookup("TestBean!" + EventListener.class.getName()));
+
+         // added
+         expected = "TestBean#" + Runnable.class.getName();
+         assertEquals(expected, javaGlobal.lookup("rebindApp/testModule/TestBean!" + Runnable.class.getName()));
+         assertEquals(expected, app.getContext().lookup("testModule/TestBean!" + Runnable.class.getName()));
+         assertEquals(expected, module.getContext().lookup("TestBean!" + Runnable.class.getName()));
+
+         // removed
+         assertNotBound(javaGlobal, "rebindApp/testModule/TestBean!" + Comparable.class.getName());
+         assertNotBound(app.getContext(), "testModule/TestBean!" + Comparable.class.getName());
+         assertNotBound(module.getContext(), "TestBean!" + Comparable.class.getName());
+      }
+      finally
+      {
+         binder.unbind();
+      }
+      assertNotBound(module.getContext(), "TestBean!" + InvocationHandler.class.getName());
+      assertNotBound(module.getContext(), "TestBean!" + Runnable.class.getName());
+   }
+
+   /**
+    * Tests that unbind skips the names which aren't bound anymore
+    */
+   @Test
+   public void testUnbindMissingName() throws Exception
+   {
+      JavaEEApplication app = mock(JavaEEApplication.class);
+      doReturn("unbindApp").when(app).getName();
+      doReturn(createContext()).when(app).getContext();
+      doReturn(true).when(app).isEnterpriseApplicationArchive();
+      JavaEEModule module = mock(JavaEEModule.class);
+      doReturn("testModule").when(module).getName();
+      doReturn(createContext()).when(module).getContext();
+      doReturn(app).when(module).getApplication();
+      SessionBeanType bean = mock(SessionBeanType.class);
+      doReturn("TestBean").when(bean).getName();
+      doReturn(module).when(bean).getModule();
+      doReturn(asList(InvocationHandler.class)).when(bean).getBusinessLocals();
+      doReturn(asList(EventListener.class)).when(bean).getBusinessRemotes();
+      EJBBinder binder = new EJBBinder(bean);
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.bind();
+
+      app.getContext().unbind("testModule/TestBean!" + EventListener.class.getName());
+      binder.unbind();
+
+      assertNotBound(javaGlobal, "unbindApp/testModule/TestBean!" + InvocationHandler.class.getName());
+      assertNotBound(javaGlobal, "unbindApp/testModule/TestBean!" + EventListener.class.getName());
+      assertNotBound(app.getContext(), "testModule/TestBean!" + InvocationHandler.class.getName());
+      assertNotBound(module.getContext(), "TestBean!" + InvocationHandler.class.getName());
+      assertNotBound(module.getContext(), "TestBean!" + EventListener.class.getName());
+   }
+
+   /**
+    * Tests that bind and unbind go through the bind and unbind methods of each view, which
+    * a subclass can override
+    */
+   @Test
+   public void testOverriddenViewHooks() throws Exception
+   {
+      JavaEEApplication app = mock(JavaEEApplication.class);
+      doReturn("hookApp").when(app).getName();
+      doReturn(createContext()).when(app).getContext();
+      doReturn(true).when(app).isEnterpriseApplicationArchive();
+      JavaEEModule module = mock(JavaEEModule.class);
+      doReturn("testModule").when(module).getName();
+      doReturn(createContext()).when(module).getContext();
+      doReturn(app).when(module).getApplication();
+      SessionBeanType bean = mock(SessionBeanType.class);
+      doReturn("TestBean").when(bean).getName();
+      doReturn(module).when(bean).getModule();
+      doReturn(asList(InvocationHandler.class)).when(bean).getBusinessLocals();
+      doReturn(asList(EventListener.class)).when(bean).getBusinessRemotes();
+
+      // a binder which leaves the global names alone
+      final List<Class<?>> globalBinds = new ArrayList<Class<?>>();
+      final List<String> globalNames = new ArrayList<String>();
+      final List<Class<?>> globalUnbinds = new ArrayList<Class<?>>();
+      EJBBinder binder = new EJBBinder(bean)
+      {
+         @Override
+         protected void bindGlobal(View view, Object proxy, List<Binding> bindings)
+         {
+            globalBinds.add(view.getBusinessInterface());
+            for (Binding binding : bindings)
+            {
+               assertSame(javaGlobal, binding.getContext());
+               globalNames.add(binding.getName());
+            }
+         }
+
+         @Override
+         protected String getGlobalJNDIName(Class<?> businessInterface)
+         {
+            // the names are computed once, up front
+            if (!globalBinds.isEmpty())
+               fail("Global name of " + businessInterface + " computed while binding");
+            return super.getGlobalJNDIName(businessInterface);
+         }
+
+         @Override
+         protected void unbindGlobal(View view, List<Binding> bindings)
+         {
+            globalUnbinds.add(view.getBusinessInterface());
+         }
+      };
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.bind();
+
+      assertEquals(Arrays.<Class<?>>asList(InvocationHandler.class, EventListener.class), globalBinds);
+      assertEquals(Arrays.asList("hookApp/testModule/TestBean!" + InvocationHandler.class.getName(), "hookApp/testModule/TestBean!" + EventListener.class.getName()), globalNames);
+      assertNotBound(javaGlobal, "hookApp/testModule/TestBean!" + InvocationHandler.class.getName());
+      assertNotBound(javaGlobal, "hookApp/testModule/TestBean!" + EventListener.class.getName());
+      String expected = "TestBean#" + InvocationHandler.class.getName();
+      assertEquals(expected, app.getContext().lookup("testModule/TestBean!" + InvocationHandler.class.getName()));
+      assertEquals(expected, module.getContext().lookup("TestBean!" + InvocationHandler.class.getName()));
+      expected = "TestBean#" + EventListener.class.getName();
+      assertEquals(expected, app.getContext().lookup("testModule/TestBean!" + EventListener.class.getName()));
+      assertEquals(expected, module.getContext().lookup("TestBean!" + EventListener.class.getName()));
+
+      binder.unbind();
+
+      // in the reverse order
+      assertEquals(Arrays.<Class<?>>asList(EventListener.class, InvocationHandler.class), globalUnbinds);
+      assertNotBound(app.getContext(), "testModule/TestBean!" + InvocationHandler.class.getName());
+      assertNotBound(module.getContext(), "TestBean!" + InvocationHandler.class.getName());
+      assertNotBound(app.getContext(), "testModule/TestBean!" + EventListener.class.getName());
+      assertNotBound(module.getContext(), "TestBean!" + EventListener.class.getName());
+   }
+
+   private static void assertNotBound(Context ctx, String name) throws NamingException
+   {
+      try
+      {
+         ctx.lookup(name);
+         fail(name + " is still bound under " + ctx);
+      }
+      catch (NameNotFoundException e)
+      {
+         // expected
+      }
+   }
 }
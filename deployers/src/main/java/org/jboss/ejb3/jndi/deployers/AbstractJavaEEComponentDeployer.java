@@ -42,7 +42,7 @@ public abstract class AbstractJavaEEComponentDeployer extends AbstractRealDeploy
 
    protected String getApplicationName(DeploymentUnit deploymentUnit)
    {
-      return informer.getApplicationName(deploymentUnit);
+      return DeploymentNames.getNames(deploymentUnit).getApplicationName(informer, deploymentUnit);
    }
 
    protected String getComponentName(DeploymentUnit deploymentUnit)
@@ -52,6 +52,6 @@ public abstract class AbstractJavaEEComponentDeployer extends AbstractRealDeploy
 
    protected String getModuleName(DeploymentUnit deploymentUnit)
    {
-      return informer.getModuleName(deploymentUnit);
+      return DeploymentNames.getNames(deploymentUnit).getModuleName(informer, deploymentUnit);
    }
 }
@@ -0,0 +1,59 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import javax.naming.NamingException;
+
+/**
+ * Binds the names of a session bean whose {@link org.jboss.ejb3.jndi.binder.EJBBinder} is held by the
+ * {@link ModuleEJBBinder} of its module.
+ * <p>
+ *  The {@link EJBBinderDeployer} installs one such bean per session bean, under the name the binder of
+ *  the session bean would have. It gets the demands of the
+ *  {@link org.jboss.ejb3.jndi.deployers.resolver.DependencyBuilder}s, so the names of a session bean are
+ *  only bound once its container is started, and a session bean failing to bind leaves the other
+ *  session beans of the module alone.
+ * </p>
+ */
+public class AggregatedEJBBinder
+{
+   private final ModuleEJBBinder module;
+   private final String ejbName;
+
+   public AggregatedEJBBinder(ModuleEJBBinder module, String ejbName)
+   {
+      this.module = module;
+      this.ejbName = ejbName;
+   }
+
+   // PostConstruct
+   public void bind() throws NamingException
+   {
+      module.bind(ejbName);
+   }
+
+   // PreDestroy
+   public void unbind() throws NamingException
+   {
+      module.unbind(ejbName);
+   }
+}
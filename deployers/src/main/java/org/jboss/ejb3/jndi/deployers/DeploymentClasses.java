@@ -0,0 +1,95 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+
+/**
+ * Cache of the classes (EJB interfaces and bean classes) loaded for a deployment.
+ * <p>
+ *  Each class is resolved through its class loader only once per deployment. Classes are 
+ *  cached per class loader, since the units of a deployment don't necessarily share the same one.
+ * </p>
+ * <p>
+ *  The cache is kept as an attachment of the top-level {@link DeploymentUnit}, so it goes away
+ *  with the deployment.
+ * </p>
+ */
+public class DeploymentClasses
+{
+   private ConcurrentMap<ClassLoader, ConcurrentMap<String, Class<?>>> classes = new ConcurrentHashMap<ClassLoader, ConcurrentMap<String, Class<?>>>();
+
+   /**
+    * Returns the classes of the deployment <code>unit</code> belongs to, creating the cache if needed.
+    * 
+    * @param unit A deployment unit of the deployment
+    * @return the classes
+    */
+   public static DeploymentClasses getClasses(DeploymentUnit unit)
+   {
+      DeploymentUnit topLevelUnit = unit.isTopLevel() ? unit : unit.getTopLevel();
+      DeploymentClasses classes = topLevelUnit.getAttachment(DeploymentClasses.class);
+      if (classes == null)
+      {
+         classes = new DeploymentClasses();
+         topLevelUnit.addAttachment(DeploymentClasses.class, classes);
+      }
+      return classes;
+   }
+
+   /**
+    * Returns the class with the passed name, as {@link Class#forName(String, boolean, ClassLoader)} would,
+    * without initializing it. The classes of the bootstrap class loader (a null <code>loader</code>) aren't cached.
+    * 
+    * @param className The fully qualified name of the class
+    * @param loader The class loader to load the class from, null for the bootstrap class loader
+    * @return the class
+    * @throws ClassNotFoundException If the class can't be loaded
+    */
+   public Class<?> loadClass(String className, ClassLoader loader) throws ClassNotFoundException
+   {
+      if (loader == null)
+      {
+         return Class.forName(className, false, null);
+      }
+      ConcurrentMap<String, Class<?>> loaded = this.classes.get(loader);
+      if (loaded == null)
+      {
+         loaded = new ConcurrentHashMap<String, Class<?>>();
+         ConcurrentMap<String, Class<?>> existing = this.classes.putIfAbsent(loader, loaded);
+         if (existing != null)
+         {
+            loaded = existing;
+         }
+      }
+      Class<?> type = loaded.get(className);
+      if (type == null)
+      {
+         type = Class.forName(className, false, loader);
+         loaded.put(className, type);
+      }
+      return type;
+   }
+}
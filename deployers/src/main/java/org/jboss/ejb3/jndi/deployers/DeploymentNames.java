@@ -0,0 +1,223 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
+
+/**
+ * Cache of the names (JNDI names, MC bean names) generated for the EJBs of a deployment.
+ * <p>
+ *  Each name is generated once per {@link DeploymentUnit}, EJB and, where relevant, interface, and
+ *  interned within the deployment, so that the deployers and the resolver share a single instance
+ *  of each name. The application and module names of a unit are also only asked once to the 
+ *  {@link JavaEEComponentInformer}.
+ * </p>
+ * <p>
+ *  The cache is kept as an attachment of the top-level {@link DeploymentUnit}, so it goes away
+ *  with the deployment.
+ * </p>
+ */
+public class DeploymentNames
+{
+   /**
+    * Interned names
+    */
+   private ConcurrentMap<String, String> pool = new ConcurrentHashMap<String, String>();
+
+   private ConcurrentMap<DeploymentUnit, UnitNames> units = new ConcurrentHashMap<DeploymentUnit, UnitNames>();
+
+   /**
+    * Returns the names of the deployment <code>unit</code> belongs to, creating them if needed.
+    * 
+    * @param unit A deployment unit of the deployment
+    * @return the names
+    */
+   public static DeploymentNames getNames(DeploymentUnit unit)
+   {
+      DeploymentUnit topLevelUnit = unit.isTopLevel() ? unit : unit.getTopLevel();
+      DeploymentNames names = topLevelUnit.getAttachment(DeploymentNames.class);
+      if (names == null)
+      {
+         names = new DeploymentNames();
+         topLevelUnit.addAttachment(DeploymentNames.class, names);
+      }
+      return names;
+   }
+
+   /**
+    * Returns the single instance of the passed name within the deployment
+    */
+   public String intern(String name)
+   {
+      if (name == null)
+      {
+         return null;
+      }
+      String interned = this.pool.putIfAbsent(name, name);
+      return interned == null ? name : interned;
+   }
+
+   public String getApplicationName(JavaEEComponentInformer informer, DeploymentUnit unit)
+   {
+      return this.getInformedUnitNames(informer, unit).applicationName;
+   }
+
+   public String getModuleName(JavaEEComponentInformer informer, DeploymentUnit unit)
+   {
+      return this.getInformedUnitNames(informer, unit).moduleName;
+   }
+
+   /**
+    * Returns the name of the passed kind generated for an EJB of <code>unit</code>
+    * 
+    * @param unit The deployment unit
+    * @param kind The kind of name
+    * @param ejbName The name of the EJB
+    * @param interfaceName The name of the interface, can be null
+    * @return the name or null if none has been generated yet
+    */
+   public String get(DeploymentUnit unit, String kind, String ejbName, String interfaceName)
+   {
+      UnitNames unitNames = this.units.get(unit);
+      if (unitNames == null)
+      {
+         return null;
+      }
+      return unitNames.names.get(new Key(kind, ejbName, interfaceName));
+   }
+
+   /**
+    * Remembers the name of the passed kind generated for an EJB of <code>unit</code>
+    * 
+    * @param unit The deployment unit
+    * @param kind The kind of name
+    * @param ejbName The name of the EJB
+    * @param interfaceName The name of the interface, can be null
+    * @param name The generated name
+    * @return the interned name, which is to be used instead of <code>name</code>
+    */
+   public String put(DeploymentUnit unit, String kind, String ejbName, String interfaceName, String name)
+   {
+      String interned = this.intern(name);
+      this.getUnitNames(unit).names.put(new Key(kind, ejbName, interfaceName), interned);
+      return interned;
+   }
+
+   private UnitNames getUnitNames(DeploymentUnit unit)
+   {
+      UnitNames unitNames = this.units.get(unit);
+      if (unitNames == null)
+      {
+         unitNames = new UnitNames();
+         UnitNames existing = this.units.putIfAbsent(unit, unitNames);
+         if (existing != null)
+         {
+            unitNames = existing;
+         }
+      }
+      return unitNames;
+   }
+
+   private UnitNames getInformedUnitNames(JavaEEComponentInformer informer, DeploymentUnit unit)
+   {
+      UnitNames unitNames = this.getUnitNames(unit);
+      if (!unitNames.informed)
+      {
+         synchronized (unitNames)
+         {
+            if (!unitNames.informed)
+            {
+               unitNames.applicationName = this.intern(informer.getApplicationName(unit));
+               unitNames.moduleName = this.intern(informer.getModuleName(unit));
+               unitNames.informed = true;
+            }
+         }
+      }
+      return unitNames;
+   }
+
+   /**
+    * The names of a deployment unit
+    */
+   private static class UnitNames
+   {
+      /**
+       * Whether the application and module names have been set
+       */
+      private volatile boolean informed;
+
+      private String applicationName;
+
+      private String moduleName;
+
+      private final ConcurrentMap<Key, String> names = new ConcurrentHashMap<Key, String>();
+   }
+
+   private static class Key
+   {
+      private final String kind;
+
+      private final String ejbName;
+
+      private final String interfaceName;
+
+      Key(String kind, String ejbName, String interfaceName)
+      {
+         this.kind = kind;
+         this.ejbName = ejbName;
+         this.interfaceName = interfaceName;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int hash = kind.hashCode();
+         hash = 31 * hash + (ejbName == null ? 0 : ejbName.hashCode());
+         hash = 31 * hash + (interfaceName == null ? 0 : interfaceName.hashCode());
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (this == obj)
+         {
+            return true;
+         }
+         if (!(obj instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key) obj;
+         return kind.equals(other.kind) && equals(ejbName, other.ejbName) && equals(interfaceName, other.interfaceName);
+      }
+
+      private static boolean equals(String s1, String s2)
+      {
+         return s1 == null ? s2 == null : s1.equals(s2);
+      }
+   }
+}
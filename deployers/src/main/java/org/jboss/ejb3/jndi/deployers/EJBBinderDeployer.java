@@ -21,12 +21,19 @@
  */
 package org.jboss.ejb3.jndi.deployers;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.jboss.beans.metadata.plugins.builder.BeanMetaDataBuilderFactory;
 import org.jboss.beans.metadata.spi.BeanMetaData;
+import org.jboss.beans.metadata.spi.ValueMetaData;
 import org.jboss.beans.metadata.spi.builder.BeanMetaDataBuilder;
+import org.jboss.dependency.spi.ControllerMode;
+import org.jboss.dependency.spi.ControllerState;
 import org.jboss.deployers.spi.DeploymentException;
 import org.jboss.deployers.structure.spi.DeploymentUnit;
 import org.jboss.ejb3.jndi.binder.EJBBinder;
@@ -47,7 +54,19 @@ import org.jboss.reloaded.naming.spi.JavaEEComponent;
 public class EJBBinderDeployer extends AbstractJavaEEComponentDeployer
 {
    private List<DependencyBuilder> builders = new CopyOnWriteArrayList<DependencyBuilder>();
-   private ProxyFactory legacy = new LegacyProxyFactory();
+   /**
+    * The name of the attachment selecting the {@link ProxyFactory} of the session beans of a
+    * deployment unit: either a {@link ProxyFactory} or the name of one of the
+    * {@link #setProxyFactories(Map) registered proxy factories}. It's looked up on the unit of the
+    * session bean, then on its parents.
+    */
+   public static final String PROXY_FACTORY_ATTACHMENT = EJBBinderDeployer.class.getName() + ".proxyFactory";
+
+   private ProxyFactory proxyFactory = new LegacyProxyFactory();
+   private Map<String, ProxyFactory> proxyFactories = new ConcurrentHashMap<String, ProxyFactory>();
+   private boolean asynchronousBind;
+   private boolean aggregateModuleBinders;
+   private volatile EJBBinderHandover handover;
 
    public EJBBinderDeployer(JavaEEComponentInformer informer)
    {
@@ -76,35 +95,334 @@ public class EJBBinderDeployer extends AbstractJavaEEComponentDeployer
       if(appName != null)
          javaCompName += "application=" + appName + ",";
       javaCompName += "module=" + moduleName + ",component=" + componentName;
+      // share the names with the resolver and the other deployers
+      DeploymentNames names = DeploymentNames.getNames(unit);
+      javaCompName = names.intern(javaCompName);
+
+      ProxyFactory beanProxyFactory = getProxyFactory(unit);
+
+      if (aggregateModuleBinders)
+      {
+         String binderName = getBinderName(names, appName, moduleName, componentName);
+         addToModuleBinder(unit, sessionBeanMetaData, javaCompName, binderName, beanProxyFactory);
+         if (asynchronousBind)
+            addToBarrier(unit, binderName);
+         return;
+      }
 
       String sessionBeanTypeName = "jboss.ejb3:";
       if(appName != null)
          sessionBeanTypeName += "application=" + appName + ",";
       sessionBeanTypeName += "module=" + moduleName + ",component=" + componentName + ",service=" + SessionBeanTypeWrapper.class.getSimpleName();
+      sessionBeanTypeName = names.intern(sessionBeanTypeName);
       {
          BeanMetaDataBuilder builder = BeanMetaDataBuilderFactory.createBuilder(sessionBeanTypeName, SessionBeanTypeWrapper.class.getName());
          builder.addConstructorParameter(JBossSessionBeanMetaData.class.getName(), sessionBeanMetaData);
          builder.addConstructorParameter(ClassLoader.class.getName(), unit.getClassLoader());
+         builder.addConstructorParameter(DeploymentClasses.class.getName(), DeploymentClasses.getClasses(unit));
          builder.addConstructorParameter(JavaEEComponent.class.getName(), builder.createInject(javaCompName));
 
          unit.getParent().addAttachment(sessionBeanTypeName, builder.getBeanMetaData());
       }
 
+      String beanInstanceName = getBinderName(names, appName, moduleName, componentName);
+      EJBBinderHandover handover = this.handover;
+      BeanMetaDataBuilder builder;
+      if (handover == null)
+      {
+         builder = BeanMetaDataBuilderFactory.createBuilder(beanInstanceName, EJBBinder.class.getName());
+         builder.addConstructorParameter(SessionBeanType.class.getName(), builder.createInject(sessionBeanTypeName));
+         builder.setStart("bind");
+         builder.setStop("unbind");
+      }
+      else
+      {
+         // the names of the binder being replaced on redeploy are kept bound until this one takes them over
+         builder = BeanMetaDataBuilderFactory.createBuilder(beanInstanceName, RedeployableEJBBinder.class.getName());
+         builder.addConstructorParameter(SessionBeanType.class.getName(), builder.createInject(sessionBeanTypeName));
+         builder.addConstructorParameter(String.class.getName(), beanInstanceName);
+         builder.addConstructorParameter(EJBBinderHandover.class.getName(), handover);
+         builder.setStart("start");
+         builder.setStop("stop");
+      }
+      builder.addPropertyMetaData("globalContext", builder.createInject("NameSpaces", "globalContext"));
+      builder.addPropertyMetaData("proxyFactory", beanProxyFactory);
+      if (asynchronousBind)
+         builder.setMode(ControllerMode.ASYNCHRONOUS);
+
+      for (DependencyBuilder db : builders)
+         db.buildDependency(unit, builder);
+
+      unit.getParent().addAttachment(beanInstanceName, builder.getBeanMetaData());
+      if (asynchronousBind)
+         addToBarrier(unit, beanInstanceName);
+   }
+
+   @Override
+   protected void internalUndeploy(DeploymentUnit unit)
+   {
+      // the beans are undeployed with the module, so whatever was collected for it can go
+      DeploymentUnit moduleUnit = unit.getParent();
+      if (moduleUnit != null)
+      {
+         moduleUnit.removeAttachment(BarrierMetaData.class);
+         moduleUnit.removeAttachment(ModuleBinderMetaData.class);
+      }
+   }
+
+   private static String getBinderName(DeploymentNames names, String appName, String moduleName, String componentName)
+   {
       String beanInstanceName = "jboss.ejb3:";
       if (appName != null)
          beanInstanceName += "application=" + appName + ",";
       beanInstanceName += "module=" + moduleName + ",component=" + componentName + ",service=" + EJBBinder.class.getSimpleName();
-      BeanMetaDataBuilder builder = BeanMetaDataBuilderFactory.createBuilder(beanInstanceName, EJBBinder.class.getName());
-      builder.addConstructorParameter(SessionBeanType.class.getName(), builder.createInject(sessionBeanTypeName));
-      builder.addPropertyMetaData("globalContext", builder.createInject("NameSpaces", "globalContext"));
-      builder.addPropertyMetaData("proxyFactory", legacy);
-      builder.setStart("bind");
-      builder.setStop("unbind");
+      return names.intern(beanInstanceName);
+   }
 
+   /**
+    * Adds the session bean to the {@link ModuleEJBBinder} of its module, creating it for the first
+    * session bean. A session bean which has already been added is skipped.
+    * <p>
+    *  The binder name of the session bean goes to an {@link AggregatedEJBBinder} bean injected with the
+    *  module binder, to which the {@link DependencyBuilder}s are applied, and which binds the names of the
+    *  session bean. The module binder itself doesn't demand the containers: a container demanding the binder
+    *  of another session bean of its module would demand the module binder, which would demand the container
+    *  in turn.
+    * </p>
+    */
+   private void addToModuleBinder(DeploymentUnit unit, JBossSessionBeanMetaData sessionBeanMetaData, String javaCompName, String beanInstanceName, ProxyFactory beanProxyFactory)
+   {
+      DeploymentUnit moduleUnit = unit.getParent();
+      ModuleBinderMetaData module = moduleUnit.getAttachment(ModuleBinderMetaData.class);
+      if (module == null)
+      {
+         String moduleBinderName = getModuleServiceName(unit, ModuleEJBBinder.class);
+
+         module = new ModuleBinderMetaData(moduleBinderName, BeanMetaDataBuilderFactory.createBuilder(moduleBinderName, ModuleEJBBinder.class.getName()));
+         BeanMetaDataBuilder builder = module.builder;
+         builder.addConstructorParameter(ClassLoader.class.getName(), unit.getClassLoader());
+         builder.addConstructorParameter(DeploymentClasses.class.getName(), DeploymentClasses.getClasses(unit));
+         builder.addPropertyMetaData("beans", module.beans);
+         builder.addPropertyMetaData("components", module.components);
+         builder.addPropertyMetaData("globalContext", builder.createInject("NameSpaces", "globalContext"));
+         builder.addPropertyMetaData("proxyFactories", module.proxyFactories);
+
+         moduleUnit.addAttachment(ModuleBinderMetaData.class, module);
+         moduleUnit.addAttachment(moduleBinderName, builder.getBeanMetaData());
+      }
+
+      if (!module.binders.add(beanInstanceName))
+         return;
+
+      BeanMetaDataBuilder builder = module.builder;
+      module.beans.add(builder.createValue(sessionBeanMetaData));
+      module.components.add(builder.createInject(javaCompName));
+      module.proxyFactories.add(builder.createValue(beanProxyFactory));
+
+      BeanMetaDataBuilder binder = BeanMetaDataBuilderFactory.createBuilder(beanInstanceName, AggregatedEJBBinder.class.getName());
+      binder.addConstructorParameter(ModuleEJBBinder.class.getName(), binder.createInject(module.name));
+      binder.addConstructorParameter(String.class.getName(), sessionBeanMetaData.getEjbName());
+      binder.setStart("bind");
+      binder.setStop("unbind");
+      if (asynchronousBind)
+         binder.setMode(ControllerMode.ASYNCHRONOUS);
       for (DependencyBuilder db : builders)
-         db.buildDependency(unit, builder);
+         db.buildDependency(unit, binder);
 
-      unit.getParent().addAttachment(beanInstanceName, builder.getBeanMetaData());
+      moduleUnit.addAttachment(beanInstanceName, binder.getBeanMetaData());
+   }
+
+   /**
+    * Makes the {@link EJBBinderBarrier} bean of the module of the passed unit demand the passed binder,
+    * creating the barrier for the first binder of the module.
+    */
+   private void addToBarrier(DeploymentUnit unit, String binderName)
+   {
+      DeploymentUnit moduleUnit = unit.getParent();
+      BarrierMetaData barrier = moduleUnit.getAttachment(BarrierMetaData.class);
+      if (barrier == null)
+      {
+         String barrierName = getModuleServiceName(unit, EJBBinderBarrier.class);
+         barrier = new BarrierMetaData(BeanMetaDataBuilderFactory.createBuilder(barrierName, EJBBinderBarrier.class.getName()));
+         moduleUnit.addAttachment(BarrierMetaData.class, barrier);
+         moduleUnit.addAttachment(barrierName, barrier.builder.getBeanMetaData());
+      }
+      if (barrier.binders.add(binderName))
+         barrier.builder.addDemand(binderName, ControllerState.START, ControllerState.INSTALLED, null);
+   }
+
+   private String getModuleServiceName(DeploymentUnit unit, Class<?> service)
+   {
+      String appName = getApplicationName(unit);
+      String name = "jboss.ejb3:";
+      if (appName != null)
+         name += "application=" + appName + ",";
+      name += "module=" + getModuleName(unit) + ",service=" + service.getSimpleName();
+      return DeploymentNames.getNames(unit).intern(name);
+   }
+
+   /**
+    * Returns the {@link ProxyFactory} selected for the session bean of the passed unit by the
+    * {@link #PROXY_FACTORY_ATTACHMENT} of the unit, or of its closest parent having one. Without
+    * any, the {@link #setProxyFactory(ProxyFactory) default proxy factory} is used.
+    */
+   private ProxyFactory getProxyFactory(DeploymentUnit unit) throws DeploymentException
+   {
+      for (DeploymentUnit current = unit; current != null; current = current.getParent())
+      {
+         Object selection = current.getAttachment(PROXY_FACTORY_ATTACHMENT);
+         if (selection == null)
+            continue;
+         if (selection instanceof ProxyFactory)
+            return (ProxyFactory) selection;
+         ProxyFactory factory = proxyFactories.get(selection.toString());
+         if (factory == null)
+            throw new DeploymentException("Unknown proxy factory " + selection + " selected for " + unit.getName() + ", registered are " + proxyFactories.keySet());
+         return factory;
+      }
+      return proxyFactory;
+   }
+
+   public ProxyFactory getProxyFactory()
+   {
+      return proxyFactory;
+   }
+
+   /**
+    * The proxy factory of the session beans for which none is selected.
+    *
+    * @param proxyFactory the default proxy factory
+    */
+   public void setProxyFactory(ProxyFactory proxyFactory)
+   {
+      if (proxyFactory == null)
+         throw new IllegalArgumentException("Null proxy factory");
+
+      this.proxyFactory = proxyFactory;
+   }
+
+   /**
+    * Registers the proxy factories which can be selected by name through the {@link #PROXY_FACTORY_ATTACHMENT}.
+    *
+    * @param proxyFactories the proxy factories, by name
+    */
+   public void setProxyFactories(Map<String, ProxyFactory> proxyFactories)
+   {
+      if (proxyFactories == null)
+         throw new IllegalArgumentException("Null proxy factories");
+
+      Map<String, ProxyFactory> factories = new ConcurrentHashMap<String, ProxyFactory>();
+      factories.putAll(proxyFactories);
+      this.proxyFactories = factories;
+   }
+
+   public void addProxyFactory(String name, ProxyFactory proxyFactory)
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Null name");
+      if (proxyFactory == null)
+         throw new IllegalArgumentException("Null proxy factory");
+
+      proxyFactories.put(name, proxyFactory);
+   }
+
+   public void removeProxyFactory(String name)
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Null name");
+
+      proxyFactories.remove(name);
+   }
+
+   public boolean isAggregateModuleBinders()
+   {
+      return aggregateModuleBinders;
+   }
+
+   /**
+    * When set, the {@link EJBBinder}s of the session beans of a module are held by a single
+    * {@link ModuleEJBBinder} bean, instead of one {@link SessionBeanTypeWrapper} bean each. The
+    * names of the per bean binders go to {@link AggregatedEJBBinder} beans, which are injected with
+    * the module binder, get the demands of the {@link DependencyBuilder}s and bind the names of their
+    * session bean once those are satisfied. A module of n session beans then takes n + 1 beans
+    * instead of 2n.
+    * <p>
+    *  The names of each session bean are still bound on their own, and only once its container is started,
+    *  so a session bean failing to bind doesn't fail the other ones of its module. A single module bean
+    *  carrying the demands of all the session beans can't be had: the session beans of a module can
+    *  depend on the binders of each other, which would then depend on the module bean, and so on their
+    *  own containers.
+    * </p>
+    *
+    * @param aggregateModuleBinders whether to use one binder per module
+    */
+   public void setAggregateModuleBinders(boolean aggregateModuleBinders)
+   {
+      this.aggregateModuleBinders = aggregateModuleBinders;
+   }
+
+   public boolean isAsynchronousBind()
+   {
+      return asynchronousBind;
+   }
+
+   /**
+    * When set, the EJBBinder beans are installed in asynchronous mode: the controller
+    * starts (and hence binds) the ones whose dependencies are satisfied concurrently,
+    * on its executor, instead of one after the other.
+    * <p>
+    *  The deployment of the beans then returns before they're bound, so there's no telling
+    *  when a name becomes available from the deployment alone. Each module gets an
+    *  {@link EJBBinderBarrier} bean, named <code>jboss.ejb3:[application=&lt;app&gt;,]module=&lt;module&gt;,service=EJBBinderBarrier</code>,
+    *  which demands every binder of the module at INSTALLED: whatever needs the names of the
+    *  module bound depends on it.
+    * </p>
+    *
+    * @param asynchronousBind whether to bind asynchronously
+    */
+   public void setAsynchronousBind(boolean asynchronousBind)
+   {
+      this.asynchronousBind = asynchronousBind;
+   }
+
+   public long getRedeployGracePeriod()
+   {
+      EJBBinderHandover handover = this.handover;
+      return handover == null ? 0 : handover.getGracePeriod();
+   }
+
+   /**
+    * When positive, the names of a stopped {@link EJBBinder} bean stay bound for that many milliseconds,
+    * and the binder of the same name started by a redeploy {@link EJBBinder#rebind(EJBBinder) takes them over}:
+    * only the names which changed are rebound, unbound or bound, and lookups keep working throughout. The
+    * names which aren't taken over are unbound once the grace period is over, so an undeployed session bean
+    * can still be looked up until then.
+    * <p>
+    *  It applies to the binders of the session beans which aren't {@link #setAggregateModuleBinders(boolean) aggregated}
+    *  per module. At 0, the default, the names are unbound as soon as the binder is stopped.
+    * </p>
+    *
+    * @param redeployGracePeriod the grace period, in milliseconds
+    */
+   public synchronized void setRedeployGracePeriod(long redeployGracePeriod)
+   {
+      if (redeployGracePeriod < 0)
+         throw new IllegalArgumentException("Negative grace period: " + redeployGracePeriod);
+
+      EJBBinderHandover previous = this.handover;
+      this.handover = redeployGracePeriod == 0 ? null : new EJBBinderHandover(redeployGracePeriod);
+      if (previous != null)
+         previous.stop();
+   }
+
+   /**
+    * Unbinds the names of the binders retained for a redeploy, if any
+    */
+   public synchronized void stop()
+   {
+      EJBBinderHandover handover = this.handover;
+      if (handover != null)
+         handover.stop();
    }
 
    public void addDependencyBuilder(DependencyBuilder builder)
@@ -122,4 +440,40 @@ public class EJBBinderDeployer extends AbstractJavaEEComponentDeployer
 
       builders.remove(builder);
    }
+
+   /**
+    * The {@link EJBBinderBarrier} bean of a module, while its binders are added to it.
+    */
+   private static class BarrierMetaData
+   {
+      private final BeanMetaDataBuilder builder;
+      private final Set<String> binders = new HashSet<String>();
+
+      BarrierMetaData(BeanMetaDataBuilder builder)
+      {
+         this.builder = builder;
+      }
+   }
+
+   /**
+    * The {@link ModuleEJBBinder} bean of a module, while its session beans are added to it.
+    */
+   private static class ModuleBinderMetaData
+   {
+      private final String name;
+      private final BeanMetaDataBuilder builder;
+      private final List<ValueMetaData> beans;
+      private final List<ValueMetaData> components;
+      private final List<ValueMetaData> proxyFactories;
+      private final Set<String> binders = new HashSet<String>();
+
+      ModuleBinderMetaData(String name, BeanMetaDataBuilder builder)
+      {
+         this.name = name;
+         this.builder = builder;
+         this.beans = builder.createList();
+         this.components = builder.createList();
+         this.proxyFactories = builder.createList();
+      }
+   }
 }
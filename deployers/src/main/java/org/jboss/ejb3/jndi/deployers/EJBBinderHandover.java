@@ -0,0 +1,215 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.logging.Logger;
+
+/**
+ * Keeps the names of a stopped {@link EJBBinder} bound for a grace period, so that the binder of
+ * the same name started by a redeploy {@link EJBBinder#rebind(EJBBinder) takes them over} instead of
+ * binding them all again. Names which aren't taken over within the grace period are unbound.
+ * <p>
+ *  A redeploy undeploys the session bean, and so stops its binder, before the new binder is started.
+ *  While the stopped binder is retained, its names can still be looked up.
+ * </p>
+ */
+public class EJBBinderHandover
+{
+   private static final Logger log = Logger.getLogger(EJBBinderHandover.class);
+
+   private final long gracePeriod;
+
+   /**
+    * The stopped binders, by bean name
+    */
+   private final Map<String, Retained> retained = new HashMap<String, Retained>();
+
+   private ScheduledExecutorService executor;
+
+   /**
+    * @param gracePeriod the time, in milliseconds, the names of a stopped binder stay bound
+    */
+   public EJBBinderHandover(long gracePeriod)
+   {
+      if (gracePeriod <= 0)
+         throw new IllegalArgumentException("Grace period must be positive: " + gracePeriod);
+      this.gracePeriod = gracePeriod;
+   }
+
+   public long getGracePeriod()
+   {
+      return gracePeriod;
+   }
+
+   /**
+    * Binds the names of the passed binder, taking them over from the retained binder of the same
+    * name if there's one.
+    *
+    * @param name the bean name of the binder
+    * @param binder the binder being started
+    */
+   public void bind(String name, EJBBinder binder) throws NamingException
+   {
+      Retained previous;
+      synchronized (this)
+      {
+         previous = retained.remove(name);
+      }
+      if (previous == null)
+      {
+         binder.bind();
+         return;
+      }
+      previous.expiry.cancel(false);
+      if (log.isDebugEnabled())
+         log.debug("Taking over the names of " + name);
+      try
+      {
+         binder.rebind(previous.binder);
+      }
+      catch (NamingException e)
+      {
+         // the names not taken over are still owned by the previous binder
+         unbind(name, previous.binder);
+         throw e;
+      }
+   }
+
+   /**
+    * Retains the passed binder, which is being stopped, for the grace period. A binder of the same name
+    * still retained is unbound.
+    *
+    * @param name the bean name of the binder
+    * @param binder the binder being stopped
+    */
+   public void release(final String name, EJBBinder binder)
+   {
+      final Retained current = new Retained(binder);
+      Retained previous;
+      synchronized (this)
+      {
+         current.expiry = getExecutor().schedule(new Runnable()
+         {
+            public void run()
+            {
+               expire(name, current);
+            }
+         }, gracePeriod, TimeUnit.MILLISECONDS);
+         previous = retained.put(name, current);
+      }
+      if (previous != null)
+      {
+         previous.expiry.cancel(false);
+         unbind(name, previous.binder);
+      }
+   }
+
+   private void expire(String name, Retained expired)
+   {
+      synchronized (this)
+      {
+         // taken over or replaced in the meantime
+         if (retained.get(name) != expired)
+            return;
+         retained.remove(name);
+      }
+      unbind(name, expired.binder);
+   }
+
+   private static void unbind(String name, EJBBinder binder)
+   {
+      try
+      {
+         binder.unbind();
+      }
+      catch (NamingException e)
+      {
+         log.warn("Failed to unbind " + name, e);
+      }
+   }
+
+   private synchronized ScheduledExecutorService getExecutor()
+   {
+      if (executor == null)
+      {
+         ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+         {
+            public Thread newThread(Runnable r)
+            {
+               Thread thread = new Thread(r, "EJBBinderHandover");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+         this.executor = executor;
+      }
+      return executor;
+   }
+
+   /**
+    * Unbinds the names of all the retained binders right away, and stops the thread expiring them
+    */
+   public void stop()
+   {
+      Map<String, Retained> stopped;
+      synchronized (this)
+      {
+         stopped = new HashMap<String, Retained>(retained);
+         retained.clear();
+         if (executor != null)
+         {
+            executor.shutdownNow();
+            executor = null;
+         }
+      }
+      for (Map.Entry<String, Retained> entry : stopped.entrySet())
+      {
+         entry.getValue().expiry.cancel(false);
+         unbind(entry.getKey(), entry.getValue().binder);
+      }
+   }
+
+   /**
+    * A stopped binder, until its names expire
+    */
+   private static class Retained
+   {
+      private final EJBBinder binder;
+      private ScheduledFuture<?> expiry;
+
+      Retained(EJBBinder binder)
+      {
+         this.binder = binder;
+      }
+   }
+}
@@ -38,10 +38,12 @@ import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
  */
 public class EJBBinderIdentifierGenerator
 {
+   private static final String EJB_BINDER = EJBBinder.class.getSimpleName();
 
    /**
     * Returns the {@link EJBBinder} name under which the {@link EJBBinder} will be installed 
-    * in MC, for the passed {@link DeploymentUnit deployment unit} and the EJB.
+    * in MC, for the passed {@link DeploymentUnit deployment unit} and the EJB. The name is generated 
+    * once and shared through the {@link DeploymentNames} of the deployment.
     * 
     * @param informer {@link JavaEEComponentInformer} which will be used to get the application and module names
     * @param unit The deployment unit
@@ -50,15 +52,22 @@ public class EJBBinderIdentifierGenerator
     */
    public static String getEJBBinderName(JavaEEComponentInformer informer, DeploymentUnit unit, String ejbName)
    {
+      DeploymentNames names = DeploymentNames.getNames(unit);
+      String name = names.get(unit, EJB_BINDER, ejbName, null);
+      if (name != null)
+      {
+         return name;
+      }
+
       StringBuilder ejbBinderName = new StringBuilder("jboss.ejb3:");
-      String appName = informer.getApplicationName(unit);
+      String appName = names.getApplicationName(informer, unit);
       if (appName != null)
       {
          ejbBinderName.append("application=");
          ejbBinderName.append(appName);
          ejbBinderName.append(",");
       }
-      String moduleName = informer.getModuleName(unit);
+      String moduleName = names.getModuleName(informer, unit);
       ejbBinderName.append("module=");
       ejbBinderName.append(moduleName);
 
@@ -66,9 +75,9 @@ public class EJBBinderIdentifierGenerator
       ejbBinderName.append(ejbName);
 
       ejbBinderName.append(",service=");
-      ejbBinderName.append(EJBBinder.class.getSimpleName());
+      ejbBinderName.append(EJB_BINDER);
 
-      return ejbBinderName.toString();
+      return names.put(unit, EJB_BINDER, ejbName, null, ejbBinderName.toString());
 
    }
 }
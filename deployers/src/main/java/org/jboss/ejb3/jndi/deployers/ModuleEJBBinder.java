@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
+import org.jboss.ejb3.jndi.deployers.metadata.SessionBeanTypeWrapper;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+import org.jboss.reloaded.naming.spi.JavaEEComponent;
+
+/**
+ * Holds the {@link EJBBinder}s of the session beans of a whole module, in place of one
+ * {@link SessionBeanTypeWrapper} and one {@link EJBBinder} bean per session bean.
+ * <p>
+ *  The n-th {@link JavaEEComponent} of {@link #setComponents(List)} is the component of the n-th
+ *  session bean of {@link #setBeans(List)}, and so is the n-th {@link ProxyFactory} of
+ *  {@link #setProxyFactories(List)}. Starting the module binder binds nothing: the names of each
+ *  session bean are bound by its {@link AggregatedEJBBinder}, through {@link #bind(String)}, once the
+ *  demands on the binder of the session bean are satisfied.
+ * </p>
+ */
+public class ModuleEJBBinder
+{
+   private ClassLoader classLoader;
+   private DeploymentClasses classes;
+   private List<JBossSessionBeanMetaData> beans;
+   private List<JavaEEComponent> components;
+   private Context globalContext;
+   private List<ProxyFactory> proxyFactories;
+
+   /**
+    * The binders of the session beans, by ejb name
+    */
+   private volatile Map<String, EJBBinder> binders;
+
+   public ModuleEJBBinder(ClassLoader classLoader, DeploymentClasses classes)
+   {
+      this.classLoader = classLoader;
+      this.classes = classes;
+   }
+
+   public void start()
+   {
+      if(beans.size() != components.size() || beans.size() != proxyFactories.size())
+         throw new IllegalStateException("Got " + beans.size() + " session beans, " + components.size() + " components and " + proxyFactories.size() + " proxy factories");
+
+      Map<String, EJBBinder> binders = new LinkedHashMap<String, EJBBinder>();
+      for(int i = 0; i < beans.size(); i++)
+      {
+         EJBBinder binder = new EJBBinder(new SessionBeanTypeWrapper(beans.get(i), classLoader, classes, components.get(i)));
+         binder.setGlobalContext(globalContext);
+         binder.setProxyFactory(proxyFactories.get(i));
+         binders.put(beans.get(i).getEjbName(), binder);
+      }
+      this.binders = binders;
+   }
+
+   public void stop()
+   {
+      this.binders = null;
+   }
+
+   /**
+    * Binds the names of a session bean of the module.
+    *
+    * @param ejbName the ejb name of the session bean
+    */
+   public void bind(String ejbName) throws NamingException
+   {
+      getBinder(ejbName).bind();
+   }
+
+   /**
+    * Unbinds the names of a session bean of the module.
+    *
+    * @param ejbName the ejb name of the session bean
+    */
+   public void unbind(String ejbName) throws NamingException
+   {
+      getBinder(ejbName).unbind();
+   }
+
+   private EJBBinder getBinder(String ejbName)
+   {
+      Map<String, EJBBinder> binders = this.binders;
+      if(binders == null)
+         throw new IllegalStateException("Module binder isn't started");
+      EJBBinder binder = binders.get(ejbName);
+      if(binder == null)
+         throw new IllegalArgumentException("No session bean " + ejbName + " in " + binders.keySet());
+      return binder;
+   }
+
+   public void setBeans(List<JBossSessionBeanMetaData> beans)
+   {
+      this.beans = beans;
+   }
+
+   public void setComponents(List<JavaEEComponent> components)
+   {
+      this.components = components;
+   }
+
+   public void setGlobalContext(Context context)
+   {
+      this.globalContext = context;
+   }
+
+   public void setProxyFactories(List<ProxyFactory> proxyFactories)
+   {
+      this.proxyFactories = proxyFactories;
+   }
+}
@@ -0,0 +1,59 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import javax.naming.NamingException;
+
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.ejb3.jndi.binder.metadata.SessionBeanType;
+
+/**
+ * An {@link EJBBinder} bean whose names are handed over to the binder replacing it on redeploy,
+ * through an {@link EJBBinderHandover}.
+ */
+public class RedeployableEJBBinder extends EJBBinder
+{
+   private final String name;
+   private final EJBBinderHandover handover;
+
+   /**
+    * @param bean the session bean
+    * @param name the bean name of the binder, which the binder replacing it shares
+    * @param handover the handover retaining the stopped binders
+    */
+   public RedeployableEJBBinder(SessionBeanType bean, String name, EJBBinderHandover handover)
+   {
+      super(bean);
+      this.name = name;
+      this.handover = handover;
+   }
+
+   public void start() throws NamingException
+   {
+      handover.bind(name, this);
+   }
+
+   public void stop()
+   {
+      handover.release(name, this);
+   }
+}
@@ -27,6 +27,7 @@ import java.util.LinkedList;
 import javax.naming.Context;
 
 import org.jboss.ejb3.jndi.binder.metadata.SessionBeanType;
+import org.jboss.ejb3.jndi.deployers.DeploymentClasses;
 import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
 import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
 import org.jboss.reloaded.naming.spi.JavaEEComponent;
@@ -39,76 +40,105 @@ public class SessionBeanTypeWrapper implements SessionBeanType
 {
    private JBossSessionBeanMetaData sessionBeanMetaData;
    private ClassLoader classLoader;
-
-   private Collection<Class<?>> businessLocals;
-   private Collection<Class<?>> businessRemotes;
-   private Class<?> home;
-   private Class<?> localHome;
-   private Class<?> ejbClass;
+   private DeploymentClasses classes;
+
+   // resolved on first use
+   private volatile Collection<Class<?>> businessLocals;
+   private volatile Collection<Class<?>> businessRemotes;
+   private volatile Class<?> home;
+   private volatile Class<?> localHome;
+   private volatile Class<?> ejbClass;
    private boolean isLocalBean;
    private JavaEEComponent delegate;
 
+   /**
+    * The classes are loaded lazily, a class which can't be loaded is reported as a RuntimeException 
+    * when it's asked for. The ClassNotFoundException is still declared, so callers catching it keep compiling.
+    */
    public SessionBeanTypeWrapper(JBossSessionBeanMetaData sessionBeanMetaData, ClassLoader classLoader, JavaEEComponent delegate)
            throws ClassNotFoundException
+   {
+      this(sessionBeanMetaData, classLoader, new DeploymentClasses(), delegate);
+   }
+
+   /**
+    * The interfaces and bean class are only loaded when they're asked for, and they aren't initialized. 
+    * 
+    * @param sessionBeanMetaData The metadata of the session bean
+    * @param classLoader The class loader of the session bean
+    * @param classes The classes of the deployment, the interfaces and bean class are loaded through
+    * @param delegate The java EE component of the session bean
+    */
+   public SessionBeanTypeWrapper(JBossSessionBeanMetaData sessionBeanMetaData, ClassLoader classLoader, DeploymentClasses classes, JavaEEComponent delegate)
    {
       this.sessionBeanMetaData = sessionBeanMetaData;
       this.classLoader = classLoader;
+      this.classes = classes;
       this.delegate = delegate;
 
-      this.businessLocals = convert(sessionBeanMetaData.getBusinessLocals(), classLoader);
-      this.businessRemotes = convert(sessionBeanMetaData.getBusinessRemotes(), classLoader);
-      this.home = convert(sessionBeanMetaData.getHome(), classLoader);
-      this.localHome = convert(sessionBeanMetaData.getLocalHome(), classLoader);
-      this.ejbClass = Class.forName(sessionBeanMetaData.getEjbClass(), true, classLoader);
       if (sessionBeanMetaData.getEjbJarMetaData().isEJB31() && sessionBeanMetaData instanceof JBossSessionBean31MetaData)
       {
          this.isLocalBean = ((JBossSessionBean31MetaData) sessionBeanMetaData).isNoInterfaceBean();
       }
    }
 
-   private static Collection<Class<?>> convert(Collection<String> classNames, ClassLoader loader)
-           throws ClassNotFoundException
+   private Collection<Class<?>> convert(Collection<String> classNames)
    {
       if(classNames == null)
          return null;
 
-      Collection<Class<?>> classes = new LinkedList<Class<?>>();
+      Collection<Class<?>> converted = new LinkedList<Class<?>>();
       for(String className : classNames)
       {
-         classes.add(Class.forName(className, true, loader));
+         converted.add(convert(className));
       }
-      return classes;
+      return converted;
    }
    
-   private static Class<?> convert(String className, ClassLoader loader) throws ClassNotFoundException
+   private Class<?> convert(String className)
    {
       if (className == null)
          return null;
 
-      return Class.forName(className, false, loader);
+      try
+      {
+         return classes.loadClass(className, classLoader);
+      }
+      catch (ClassNotFoundException e)
+      {
+         throw new RuntimeException("Can't load " + className + " of EJB " + sessionBeanMetaData.getEjbName(), e);
+      }
    }
 
    @Override
    public Collection<Class<?>> getBusinessLocals()
    {
+      if (businessLocals == null)
+         businessLocals = convert(sessionBeanMetaData.getBusinessLocals());
       return businessLocals;
    }
 
    @Override
    public Collection<Class<?>> getBusinessRemotes()
    {
+      if (businessRemotes == null)
+         businessRemotes = convert(sessionBeanMetaData.getBusinessRemotes());
       return businessRemotes;
    }
 
    @Override
    public Class<?> getEJBClass()
    {
+      if (ejbClass == null)
+         ejbClass = convert(sessionBeanMetaData.getEjbClass());
       return ejbClass;
    }
 
    @Override
    public Class<?> getHome()
    {
+      if (home == null)
+         home = convert(sessionBeanMetaData.getHome());
       return this.home;
    }
 
@@ -127,6 +157,8 @@ public class SessionBeanTypeWrapper implements SessionBeanType
    @Override
    public Class<?> getLocalHome()
    {
+      if (localHome == null)
+         localHome = convert(sessionBeanMetaData.getLocalHome());
       return this.localHome;
    }
 
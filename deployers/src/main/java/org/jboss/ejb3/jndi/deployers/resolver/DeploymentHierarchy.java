@@ -0,0 +1,195 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+
+/**
+ * Structural information about a deployment hierarchy, computed on demand.
+ * <p>
+ *  It's kept as an attachment of the top-level {@link DeploymentUnit}, so it goes away with
+ *  the deployment.
+ * </p>
+ */
+class DeploymentHierarchy
+{
+   /**
+    * The order in which the units are searched, when resolving a reference from a unit
+    */
+   private ConcurrentMap<DeploymentUnit, List<DeploymentUnit>> searchOrders = new ConcurrentHashMap<DeploymentUnit, List<DeploymentUnit>>();
+
+   /**
+    * The top-level unit of the hierarchy
+    */
+   private DeploymentUnit topLevelUnit;
+
+   /**
+    * The units of the hierarchy, by relative path. Rebuilt when a path can't be found, to
+    * pick up units added since.
+    */
+   private volatile Map<String, DeploymentUnit> unitsByRelativePath;
+
+   DeploymentHierarchy(DeploymentUnit topLevelUnit)
+   {
+      this.topLevelUnit = topLevelUnit;
+   }
+
+   /**
+    * Returns the hierarchy <code>unit</code> belongs to, creating it if needed.
+    */
+   static DeploymentHierarchy getHierarchy(DeploymentUnit unit)
+   {
+      DeploymentUnit topLevelUnit = unit.isTopLevel() ? unit : unit.getTopLevel();
+      DeploymentHierarchy hierarchy = topLevelUnit.getAttachment(DeploymentHierarchy.class);
+      if (hierarchy == null)
+      {
+         hierarchy = new DeploymentHierarchy(topLevelUnit);
+         topLevelUnit.addAttachment(DeploymentHierarchy.class, hierarchy);
+      }
+      return hierarchy;
+   }
+
+   /**
+    * Drops the hierarchy <code>unit</code> belongs to.
+    */
+   static void invalidate(DeploymentUnit unit)
+   {
+      DeploymentUnit topLevelUnit = unit.isTopLevel() ? unit : unit.getTopLevel();
+      topLevelUnit.removeAttachment(DeploymentHierarchy.class);
+   }
+
+   /**
+    * Returns the units to search, in order, when resolving a reference from the passed unit:
+    * the unit itself, then its descendants (depth first), then its parent, followed by the
+    * other subtrees of the parent, and so on up to the top-level unit.
+    * 
+    * @param unit The unit the search starts from
+    * @return the units to search
+    */
+   List<DeploymentUnit> getSearchOrder(DeploymentUnit unit)
+   {
+      List<DeploymentUnit> searchOrder = this.searchOrders.get(unit);
+      if (searchOrder == null)
+      {
+         searchOrder = computeSearchOrder(unit);
+         this.searchOrders.put(unit, searchOrder);
+      }
+      return searchOrder;
+   }
+
+   private static List<DeploymentUnit> computeSearchOrder(DeploymentUnit unit)
+   {
+      List<DeploymentUnit> searchOrder = new ArrayList<DeploymentUnit>();
+      Set<DeploymentUnit> scanned = Collections.newSetFromMap(new IdentityHashMap<DeploymentUnit, Boolean>());
+      addSubtree(unit, searchOrder, scanned);
+      DeploymentUnit current = unit;
+      DeploymentUnit parent = current.getParent();
+      while (parent != null)
+      {
+         if (scanned.add(parent))
+         {
+            searchOrder.add(parent);
+         }
+         List<DeploymentUnit> children = parent.getChildren();
+         if (children != null)
+         {
+            for (DeploymentUnit child : children)
+            {
+               addSubtree(child, searchOrder, scanned);
+            }
+         }
+         current = parent;
+         parent = current.getParent();
+      }
+      return Collections.unmodifiableList(searchOrder);
+   }
+
+   private static void addSubtree(DeploymentUnit unit, List<DeploymentUnit> searchOrder, Set<DeploymentUnit> scanned)
+   {
+      // already searched that one (and hence its children)
+      if (!scanned.add(unit))
+      {
+         return;
+      }
+      searchOrder.add(unit);
+      List<DeploymentUnit> children = unit.getChildren();
+      if (children != null)
+      {
+         for (DeploymentUnit child : children)
+         {
+            addSubtree(child, searchOrder, scanned);
+         }
+      }
+   }
+
+   /**
+    * Returns the child of <code>parent</code> with the passed relative path (from the top-level unit)
+    * 
+    * @param parent The parent unit
+    * @param relativePath The relative path of the child
+    * @return the child, or null if <code>parent</code> has no such child
+    */
+   DeploymentUnit getChild(DeploymentUnit parent, String relativePath)
+   {
+      Map<String, DeploymentUnit> units = this.unitsByRelativePath;
+      DeploymentUnit child = units == null ? null : units.get(relativePath);
+      if (child == null)
+      {
+         units = this.indexRelativePaths();
+         child = units.get(relativePath);
+      }
+      if (child == null || child.getParent() != parent)
+      {
+         return null;
+      }
+      return child;
+   }
+
+   private Map<String, DeploymentUnit> indexRelativePaths()
+   {
+      Map<String, DeploymentUnit> units = new HashMap<String, DeploymentUnit>();
+      List<DeploymentUnit> pending = new ArrayList<DeploymentUnit>();
+      pending.add(this.topLevelUnit);
+      while (!pending.isEmpty())
+      {
+         DeploymentUnit unit = pending.remove(pending.size() - 1);
+         units.put(unit.getRelativePath(), unit);
+         List<DeploymentUnit> children = unit.getChildren();
+         if (children != null)
+         {
+            pending.addAll(children);
+         }
+      }
+      this.unitsByRelativePath = units;
+      return units;
+   }
+}
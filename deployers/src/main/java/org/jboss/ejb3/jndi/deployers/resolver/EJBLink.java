@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+/**
+ * The parsed form of the ejb-link (i.e. bean name) of an {@link EJBReference}, which is one of:
+ * <ul>
+ *    <li><code>ejbName</code></li>
+ *    <li><code>moduleName/ejbName</code></li>
+ *    <li><code>relative/path/to/module.jar#ejbName</code></li>
+ * </ul>
+ */
+class EJBLink
+{
+   /**
+    * The link of a reference which doesn't name the target bean
+    */
+   static final EJBLink NONE = new EJBLink(null, null, null, null);
+
+   private final String link;
+
+   private final String path;
+
+   private final String moduleName;
+
+   private final String ejbName;
+
+   private EJBLink(String link, String path, String moduleName, String ejbName)
+   {
+      this.link = link;
+      this.path = path;
+      this.moduleName = moduleName;
+      this.ejbName = ejbName;
+   }
+
+   /**
+    * Parses the passed ejb-link
+    * 
+    * @param ejbLink The ejb-link, can be null
+    * @return the parsed link
+    */
+   static EJBLink parse(String ejbLink)
+   {
+      if (ejbLink == null || ejbLink.trim().isEmpty())
+      {
+         return NONE;
+      }
+      if (ejbLink.endsWith("#") || ejbLink.endsWith("/"))
+      {
+         // malformed, rejected when it's matched
+         return new EJBLink(ejbLink, null, null, null);
+      }
+      int indexOfHash = ejbLink.indexOf("#");
+      if (indexOfHash != -1)
+      {
+         return new EJBLink(ejbLink, ejbLink.substring(0, indexOfHash), null, ejbLink.substring(indexOfHash + 1));
+      }
+      int indexOfForwardSlash = ejbLink.indexOf("/");
+      if (indexOfForwardSlash != -1)
+      {
+         return new EJBLink(ejbLink, null, ejbLink.substring(0, indexOfForwardSlash), ejbLink.substring(indexOfForwardSlash + 1));
+      }
+      return new EJBLink(ejbLink, null, null, ejbLink);
+   }
+
+   /**
+    * Returns true if the link names the target bean
+    */
+   boolean isSpecified()
+   {
+      return this.link != null;
+   }
+
+   /**
+    * Returns true if the link ends with a / or a #
+    */
+   boolean isMalformed()
+   {
+      return this.link != null && this.ejbName == null;
+   }
+
+   String getLink()
+   {
+      return this.link;
+   }
+
+   /**
+    * Returns the path of a <code>path#ejbName</code> link, null otherwise
+    */
+   String getPath()
+   {
+      return this.path;
+   }
+
+   /**
+    * Returns the module name of a <code>moduleName/ejbName</code> link, null otherwise
+    */
+   String getModuleName()
+   {
+      return this.moduleName;
+   }
+
+   /**
+    * Returns the name of the target bean, null if the link isn't specified or is malformed
+    */
+   String getEjbName()
+   {
+      return this.ejbName;
+   }
+
+   @Override
+   public String toString()
+   {
+      return String.valueOf(this.link);
+   }
+}
@@ -61,6 +61,11 @@ public class EJBReference
     */
    private String lookupName;
 
+   /**
+    * The parsed bean name, see {@link #getEJBLink()}
+    */
+   private volatile EJBLink ejbLink;
+
    // --------------------------------------------------------------------------------||
    // Constructors -------------------------------------------------------------------||
    // --------------------------------------------------------------------------------||
@@ -100,6 +105,20 @@ public class EJBReference
    {
       return this.unit;
    }
+
+   /**
+    * Returns the bean name of this reference, parsed once
+    */
+   EJBLink getEJBLink()
+   {
+      EJBLink link = this.ejbLink;
+      if (link == null)
+      {
+         link = EJBLink.parse(this.beanName);
+         this.ejbLink = link;
+      }
+      return link;
+   }
    
 
    // --------------------------------------------------------------------------------||
@@ -0,0 +1,156 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+
+/**
+ * Cache of the {@link EJBBinderResolutionResult}s computed within a deployment hierarchy.
+ * <p>
+ *  The cache is kept as an attachment of the top-level {@link DeploymentUnit}, so it goes away
+ *  with the deployment. It is dropped whenever the {@link EnterpriseBeanIndex} of any unit in the
+ *  hierarchy is (re)built, and by the {@link EJBResolutionCacheDeployer} whenever a unit carrying
+ *  EJB metadata is deployed into, or undeployed from, the hierarchy, because the results it holds
+ *  may no longer be valid.
+ * </p>
+ * <p>
+ *  References which couldn't be resolved are cached too.
+ * </p>
+ */
+class EJBResolutionCache
+{
+   /**
+    * Marks a reference which couldn't be resolved
+    */
+   private static final Object NOT_FOUND = new Object();
+
+   private ConcurrentMap<Key, Object> results = new ConcurrentHashMap<Key, Object>();
+
+   /**
+    * Returns the cache of the deployment hierarchy <code>unit</code> belongs to, creating it
+    * if needed.
+    */
+   static EJBResolutionCache getCache(DeploymentUnit unit)
+   {
+      DeploymentUnit topLevelUnit = unit.isTopLevel() ? unit : unit.getTopLevel();
+      EJBResolutionCache cache = topLevelUnit.getAttachment(EJBResolutionCache.class);
+      if (cache == null)
+      {
+         cache = new EJBResolutionCache();
+         topLevelUnit.addAttachment(EJBResolutionCache.class, cache);
+      }
+      return cache;
+   }
+
+   /**
+    * Drops the cache of the deployment hierarchy <code>unit</code> belongs to.
+    */
+   static void invalidate(DeploymentUnit unit)
+   {
+      DeploymentUnit topLevelUnit = unit.isTopLevel() ? unit : unit.getTopLevel();
+      topLevelUnit.removeAttachment(EJBResolutionCache.class);
+   }
+
+   /**
+    * Returns true if a result (possibly null) has been cached for the passed reference, resolved
+    * from <code>unit</code>.
+    */
+   boolean isCached(DeploymentUnit unit, EJBReference reference)
+   {
+      return this.results.containsKey(new Key(unit, reference));
+   }
+
+   /**
+    * Returns the cached result for the passed reference, resolved from <code>unit</code>. Returns null
+    * if the reference couldn't be resolved, or if nothing was cached. 
+    */
+   EJBBinderResolutionResult get(DeploymentUnit unit, EJBReference reference)
+   {
+      Object result = this.results.get(new Key(unit, reference));
+      return result == NOT_FOUND ? null : (EJBBinderResolutionResult) result;
+   }
+
+   void put(DeploymentUnit unit, EJBReference reference, EJBBinderResolutionResult result)
+   {
+      this.results.put(new Key(unit, reference), result == null ? NOT_FOUND : result);
+   }
+
+   /**
+    * Identifies a resolution by the unit it was started from and the parts of the {@link EJBReference}
+    * which drive it. The owner unit of the reference only matters for ejb-links using a relative path.
+    */
+   private static class Key
+   {
+      private DeploymentUnit unit;
+
+      private DeploymentUnit owner;
+
+      private String beanName;
+
+      private String beanInterface;
+
+      private int hashCode;
+
+      Key(DeploymentUnit unit, EJBReference reference)
+      {
+         this.unit = unit;
+         this.beanName = reference.getBeanName();
+         this.beanInterface = reference.getBeanInterface();
+         if (this.beanName != null && this.beanName.indexOf('#') != -1)
+         {
+            this.owner = reference.getOwnerDeploymentUnit();
+         }
+         this.hashCode = 31 * (31 * (31 * unit.hashCode() + (owner == null ? 0 : owner.hashCode()))
+               + (beanName == null ? 0 : beanName.hashCode())) + (beanInterface == null ? 0 : beanInterface.hashCode());
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return this.hashCode;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (this == obj)
+         {
+            return true;
+         }
+         if (!(obj instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key) obj;
+         return this.unit == other.unit && this.owner == other.owner && equals(this.beanName, other.beanName)
+               && equals(this.beanInterface, other.beanInterface);
+      }
+
+      private static boolean equals(String s1, String s2)
+      {
+         return s1 == null ? s2 == null : s1.equals(s2);
+      }
+   }
+}
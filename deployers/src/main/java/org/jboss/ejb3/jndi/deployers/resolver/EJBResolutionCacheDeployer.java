@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import org.jboss.deployers.spi.DeploymentException;
+import org.jboss.deployers.spi.deployer.DeploymentStages;
+import org.jboss.deployers.spi.deployer.helpers.AbstractRealDeployer;
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+
+/**
+ * Drops what the {@link ScopedEJBBinderResolver} knows about a deployment hierarchy whenever
+ * a unit carrying EJB metadata is deployed into it, or undeployed from it.
+ * <p>
+ *  It runs once the metadata has been processed and before the references of the unit get resolved,
+ *  so a cached resolution never outlives the units it was computed from.
+ * </p>
+ */
+public class EJBResolutionCacheDeployer extends AbstractRealDeployer
+{
+   private static final String PROCESSED_METADATA = "processed." + JBossMetaData.class.getName();
+
+   private ScopedEJBBinderResolver resolver;
+
+   public EJBResolutionCacheDeployer(ScopedEJBBinderResolver resolver)
+   {
+      if (resolver == null)
+      {
+         throw new IllegalArgumentException("Null resolver");
+      }
+      this.resolver = resolver;
+
+      setStage(DeploymentStages.POST_CLASSLOADER);
+      // only for ordering, run after the deployers producing the metadata
+      setInputs(JBossMetaData.class.getName(), PROCESSED_METADATA);
+   }
+
+   @Override
+   protected void internalDeploy(DeploymentUnit unit) throws DeploymentException
+   {
+      if (this.hasMetaData(unit))
+      {
+         this.resolver.invalidate(unit);
+      }
+   }
+
+   @Override
+   protected void internalUndeploy(DeploymentUnit unit)
+   {
+      if (this.hasMetaData(unit))
+      {
+         this.resolver.invalidate(unit);
+      }
+   }
+
+   private boolean hasMetaData(DeploymentUnit unit)
+   {
+      return unit.isAttachmentPresent(PROCESSED_METADATA) || unit.isAttachmentPresent(JBossMetaData.class);
+   }
+}
@@ -0,0 +1,393 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.jndi.deployers.DeploymentClasses;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEntityBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+import org.jboss.metadata.ejb.spec.BusinessLocalsMetaData;
+import org.jboss.metadata.ejb.spec.BusinessRemotesMetaData;
+
+/**
+ * Index of the enterprise beans in a {@link DeploymentUnit}, which can be the target of an EJB reference.
+ * <p>
+ *  The index is built once per {@link JBossMetaData} and kept as an attachment of the
+ *  {@link DeploymentUnit} it was built for, so it goes away with the deployment.
+ * </p>
+ */
+class EnterpriseBeanIndex
+{
+   /**
+    * The metadata this index was built from
+    */
+   private JBossMetaData metadata;
+
+   /**
+    * The class loader of the deployment unit, used to load the exposed interfaces
+    */
+   private ClassLoader classLoader;
+
+   /**
+    * The classes of the deployment, the exposed interfaces are loaded through
+    */
+   private DeploymentClasses classes;
+
+   /**
+    * Session beans, @Service beans and (EJB2.x) entity beans, in metadata order
+    */
+   private List<JBossEnterpriseBeanMetaData> beans = new ArrayList<JBossEnterpriseBeanMetaData>();
+
+   /**
+    * The beans by ejb-name
+    */
+   private Map<String, List<JBossEnterpriseBeanMetaData>> beansByName = new HashMap<String, List<JBossEnterpriseBeanMetaData>>();
+
+   /**
+    * The beans by the name of the interfaces they expose, and by bean class for the beans with a no-interface view
+    */
+   private Map<String, List<JBossEnterpriseBeanMetaData>> beansByInterface = new HashMap<String, List<JBossEnterpriseBeanMetaData>>();
+
+   /**
+    * The names of the interfaces exposed by a bean
+    */
+   private Map<JBossEnterpriseBeanMetaData, Set<String>> exposedInterfaceNames = new IdentityHashMap<JBossEnterpriseBeanMetaData, Set<String>>();
+
+   /**
+    * The interfaces exposed by a bean, loaded through {@link #classLoader}, filled on demand
+    */
+   private Map<JBossEnterpriseBeanMetaData, Set<Class<?>>> exposedInterfaces = new IdentityHashMap<JBossEnterpriseBeanMetaData, Set<Class<?>>>();
+
+   /**
+    * The supertype closure of the interfaces exposed by a bean, filled on demand
+    */
+   private Map<JBossEnterpriseBeanMetaData, Map<String, List<Class<?>>>> exposedSuperTypes = new IdentityHashMap<JBossEnterpriseBeanMetaData, Map<String, List<Class<?>>>>();
+
+   EnterpriseBeanIndex(JBossMetaData metadata, ClassLoader classLoader, DeploymentClasses classes)
+   {
+      this.metadata = metadata;
+      this.classLoader = classLoader;
+      this.classes = classes;
+
+      JBossEnterpriseBeansMetaData enterpriseBeans = metadata.getEnterpriseBeans();
+      if (enterpriseBeans == null)
+      {
+         return;
+      }
+      for (JBossEnterpriseBeanMetaData bean : enterpriseBeans)
+      {
+         // We only work with Session beans, @Service beans and (EJB2.x) entity beans.
+         if (!bean.isSession() && !bean.isService() && !bean.isEntity())
+         {
+            continue;
+         }
+         this.beans.add(bean);
+         add(this.beansByName, bean.getEjbName(), bean);
+
+         Set<String> names = computeExposedInterfaceNames(bean);
+         this.exposedInterfaceNames.put(bean, Collections.unmodifiableSet(names));
+         for (String name : names)
+         {
+            add(this.beansByInterface, name, bean);
+         }
+         if (hasNoInterfaceView(bean) && bean.getEjbClass() != null)
+         {
+            add(this.beansByInterface, bean.getEjbClass(), bean);
+         }
+      }
+   }
+
+   private static void add(Map<String, List<JBossEnterpriseBeanMetaData>> beansByKey, String key, JBossEnterpriseBeanMetaData bean)
+   {
+      List<JBossEnterpriseBeanMetaData> keyed = beansByKey.get(key);
+      if (keyed == null)
+      {
+         keyed = new ArrayList<JBossEnterpriseBeanMetaData>(1);
+         beansByKey.put(key, keyed);
+      }
+      // a bean can expose its no-interface view class as an interface too
+      else if (keyed.get(keyed.size() - 1) == bean)
+      {
+         return;
+      }
+      keyed.add(bean);
+   }
+
+   /**
+    * Returns the index for the passed {@link JBossMetaData} of <code>unit</code>, building it
+    * if the unit doesn't have one yet or if its metadata or class loader has been replaced since.
+    * Building an index drops the {@link EJBResolutionCache} of the deployment hierarchy.
+    * 
+    * @param unit The deployment unit
+    * @param metadata The metadata of the deployment unit
+    * @return the index
+    */
+   static EnterpriseBeanIndex getIndex(DeploymentUnit unit, JBossMetaData metadata)
+   {
+      EnterpriseBeanIndex index = unit.getAttachment(EnterpriseBeanIndex.class);
+      ClassLoader classLoader = unit.getClassLoader();
+      if (index == null || index.metadata != metadata || index.classLoader != classLoader)
+      {
+         index = new EnterpriseBeanIndex(metadata, classLoader, DeploymentClasses.getClasses(unit));
+         unit.addAttachment(EnterpriseBeanIndex.class, index);
+         // the results resolved so far didn't take this index into account 
+         EJBResolutionCache.invalidate(unit);
+      }
+      return index;
+   }
+
+   JBossMetaData getMetaData()
+   {
+      return this.metadata;
+   }
+
+   /**
+    * Returns the beans which can be the target of an EJB reference
+    */
+   List<JBossEnterpriseBeanMetaData> getBeans()
+   {
+      return this.beans;
+   }
+
+   /**
+    * Returns the beans with the passed ejb-name
+    */
+   List<JBossEnterpriseBeanMetaData> getBeans(String ejbName)
+   {
+      List<JBossEnterpriseBeanMetaData> named = this.beansByName.get(ejbName);
+      if (named == null)
+      {
+         return Collections.emptyList();
+      }
+      return named;
+   }
+
+   /**
+    * Returns the beans which expose the passed interface directly (i.e. as business local, business remote,
+    * remote home, local home, local or remote interface), or whose no-interface view is the passed class,
+    * in metadata order
+    */
+   List<JBossEnterpriseBeanMetaData> getBeansExposing(String interfaceName)
+   {
+      List<JBossEnterpriseBeanMetaData> exposing = this.beansByInterface.get(interfaceName);
+      if (exposing == null)
+      {
+         return Collections.emptyList();
+      }
+      return exposing;
+   }
+
+   ClassLoader getClassLoader()
+   {
+      return this.classLoader;
+   }
+
+   /**
+    * Loads the passed class through the class loader of the deployment unit, only once per deployment
+    * 
+    * @param className The fully qualified name of the class
+    * @return the class
+    * @throws ClassNotFoundException If the class can't be loaded
+    */
+   Class<?> loadClass(String className) throws ClassNotFoundException
+   {
+      return this.classes.loadClass(className, this.classLoader);
+   }
+
+   /**
+    * Returns the names of the interfaces exposed by the passed bean of the index
+    */
+   Set<String> getExposedInterfaceNames(JBossEnterpriseBeanMetaData bean)
+   {
+      Set<String> names = this.exposedInterfaceNames.get(bean);
+      if (names == null)
+      {
+         return Collections.emptySet();
+      }
+      return names;
+   }
+
+   /**
+    * Returns the interfaces exposed by the passed bean, or null if they haven't been
+    * loaded yet
+    */
+   synchronized Set<Class<?>> getExposedInterfaces(JBossEnterpriseBeanMetaData bean)
+   {
+      return this.exposedInterfaces.get(bean);
+   }
+
+   /**
+    * Remembers the interfaces exposed by the passed bean
+    */
+   synchronized void setExposedInterfaces(JBossEnterpriseBeanMetaData bean, Set<Class<?>> interfaces)
+   {
+      this.exposedInterfaces.put(bean, Collections.unmodifiableSet(interfaces));
+   }
+
+   /**
+    * Returns, for each supertype name, the exposed interfaces of the passed bean which are 
+    * assignable to it, or null if that hasn't been computed yet
+    */
+   synchronized Map<String, List<Class<?>>> getExposedSuperTypes(JBossEnterpriseBeanMetaData bean)
+   {
+      return this.exposedSuperTypes.get(bean);
+   }
+
+   /**
+    * Remembers the supertype closure of the interfaces exposed by the passed bean
+    */
+   synchronized void setExposedSuperTypes(JBossEnterpriseBeanMetaData bean, Map<String, List<Class<?>>> superTypes)
+   {
+      this.exposedSuperTypes.put(bean, Collections.unmodifiableMap(superTypes));
+   }
+
+   private static Set<String> computeExposedInterfaceNames(JBossEnterpriseBeanMetaData enterpriseBean)
+   {
+      if ((enterpriseBean.isSession() || enterpriseBean.isService()) && (enterpriseBean instanceof JBossSessionBeanMetaData))
+      {
+         return getSessionBeanExposedInterfaceNames((JBossSessionBeanMetaData) enterpriseBean);
+      }
+      if (enterpriseBean.isEntity() && (enterpriseBean instanceof JBossEntityBeanMetaData))
+      {
+         return getEntityBeanExposedInterfaceNames((JBossEntityBeanMetaData) enterpriseBean); 
+      }
+      // return an empty set
+      return new HashSet<String>();
+   }
+
+   private static Set<String> getSessionBeanExposedInterfaceNames(JBossSessionBeanMetaData smd)
+   {
+      Set<String> interfaces = new HashSet<String>();
+
+      // Add all eligible bean interfaces
+      BusinessLocalsMetaData businessLocals = smd.getBusinessLocals();
+      BusinessRemotesMetaData businessRemotes = smd.getBusinessRemotes();
+      String home = smd.getHome();
+      String localHome = smd.getLocalHome();
+      if (businessLocals != null)
+      {
+         for (String busLocal : businessLocals)
+         {
+            if (busLocal == null)
+            {
+               continue;
+            }
+            interfaces.add(busLocal);   
+         }
+         
+      }
+      if (businessRemotes != null)
+      {
+         for (String busRemote : businessRemotes)
+         {
+            if (busRemote == null)
+            {
+               continue;
+            }
+            interfaces.add(busRemote);   
+         }
+
+      }
+      if (home != null && home.trim().length() > 0)
+      {
+         interfaces.add(home);
+      }
+      if (localHome != null && localHome.trim().length() > 0)
+      {
+         interfaces.add(localHome);
+      }
+
+      return interfaces;
+   }
+
+   private static Set<String> getEntityBeanExposedInterfaceNames(JBossEntityBeanMetaData entityBean)
+   {
+      Set<String> interfaces = new HashSet<String>();
+
+      // Add all eligible bean interfaces
+      // local
+      String local = entityBean.getLocal();
+      if (local != null && !local.trim().isEmpty())
+      {
+         interfaces.add(local);
+      }
+      // remote
+      String remote = entityBean.getRemote();
+      if (remote != null && !remote.trim().isEmpty())
+      {
+         interfaces.add(remote);
+      }
+      // remote home
+      String home = entityBean.getHome();
+      if (home != null && !home.trim().isEmpty())
+      {
+         interfaces.add(home);
+      }
+      // local home
+      String localHome = entityBean.getLocalHome();
+      if (localHome != null && !localHome.trim().isEmpty())
+      {
+         interfaces.add(localHome);
+      }
+
+      return interfaces;
+   }
+
+   /**
+    * Returns true if the passed session bean metadata represents a EJB3.1 bean
+    * which exposes a no-interface view. Else returns false.
+    * 
+    * @param beanMetaData Session bean metadata
+    * @return
+    */
+   static boolean hasNoInterfaceView(JBossEnterpriseBeanMetaData beanMetaData)
+   {
+      if (!beanMetaData.isSession() || !(beanMetaData instanceof JBossSessionBeanMetaData))
+      {
+         return false;
+      }
+      JBossSessionBeanMetaData sessionBean = (JBossSessionBeanMetaData) beanMetaData;
+      if (!sessionBean.getJBossMetaData().isEJB31())
+      {
+         return false;
+      }
+      if (sessionBean instanceof JBossSessionBean31MetaData == false)
+      {
+         return false;
+      }
+      JBossSessionBean31MetaData sessionBean31 = (JBossSessionBean31MetaData) beanMetaData;
+      return sessionBean31.isNoInterfaceBean();
+   }
+}
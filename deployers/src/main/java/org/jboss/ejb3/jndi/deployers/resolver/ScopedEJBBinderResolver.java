@@ -24,24 +24,35 @@ package org.jboss.ejb3.jndi.deployers.resolver;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.jndi.deployers.DeploymentNames;
 import org.jboss.ejb3.jndi.deployers.EJBBinderIdentifierGenerator;
 import org.jboss.logging.Logger;
 import org.jboss.metadata.ear.jboss.JBossAppMetaData;
 import org.jboss.metadata.ejb.jboss.InvokerBindingMetaData;
 import org.jboss.metadata.ejb.jboss.InvokerBindingsMetaData;
 import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
-import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
 import org.jboss.metadata.ejb.jboss.JBossEntityBeanMetaData;
 import org.jboss.metadata.ejb.jboss.JBossMetaData;
-import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
 import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
-import org.jboss.metadata.ejb.spec.BusinessLocalsMetaData;
-import org.jboss.metadata.ejb.spec.BusinessRemotesMetaData;
 import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
 
 /**
@@ -57,14 +68,90 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
     * Logger
     */
    private static Logger logger = Logger.getLogger(ScopedEJBBinderResolver.class);
+
+   /**
+    * The kind of the java:global names in the {@link DeploymentNames}
+    */
+   private static final String GLOBAL_JNDI_NAME = "java:global";
    
    private JavaEEComponentInformer componentInformer;
+
+   /**
+    * The minimum number of {@link DeploymentUnit}s to search for the search to be done
+    * in parallel. 0 (the default) means never.
+    */
+   private int parallelScanThreshold;
+
+   /**
+    * The maximum number of {@link DeploymentUnit}s searched in parallel
+    */
+   private int parallelism = Runtime.getRuntime().availableProcessors();
+
+   /**
+    * Searches the {@link DeploymentUnit}s in parallel, created on demand
+    */
+   private ExecutorService executor;
    
    public ScopedEJBBinderResolver(JavaEEComponentInformer componentInformer)
    {
       this.componentInformer = componentInformer;
    }
 
+   public int getParallelScanThreshold()
+   {
+      return this.parallelScanThreshold;
+   }
+
+   /**
+    * Sets the minimum number of {@link DeploymentUnit}s to search, for a reference to be resolved 
+    * by searching them in parallel. 0 disables parallel searches.
+    * 
+    * @param parallelScanThreshold The threshold
+    */
+   public void setParallelScanThreshold(int parallelScanThreshold)
+   {
+      if (parallelScanThreshold < 0)
+      {
+         throw new IllegalArgumentException("Negative parallel scan threshold: " + parallelScanThreshold);
+      }
+      this.parallelScanThreshold = parallelScanThreshold;
+   }
+
+   public int getParallelism()
+   {
+      return this.parallelism;
+   }
+
+   /**
+    * Sets the maximum number of {@link DeploymentUnit}s searched in parallel
+    * 
+    * @param parallelism The number of threads searching the units
+    */
+   public synchronized void setParallelism(int parallelism)
+   {
+      if (parallelism < 1)
+      {
+         throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+      }
+      if (this.executor != null)
+      {
+         throw new IllegalStateException("Parallelism can't be changed once parallel searches have started");
+      }
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * Shuts down the threads used for parallel searches, if any
+    */
+   public synchronized void stop()
+   {
+      if (this.executor != null)
+      {
+         this.executor.shutdownNow();
+         this.executor = null;
+      }
+   }
+
 
    /**
     * This method first tries to resolve the passed {@link EjbReference} in the passed <code>du</code>.
@@ -78,7 +165,6 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
     * </p>
     *  
     * @param du The deployment unit within which the {@link EjbReference} will be resolved
-    * @param alreadyScannedDUs The {@link DeploymentUnit}s which have already been scanned for resolving the {@link EjbReference}
     * @param reference The {@link EjbReference} which is being resolved
     * @return Returns the jndi-name resolved out the {@link EjbReference}. If the jndi-name cannot be resolved, then this
     *           method returns null.
@@ -86,81 +172,252 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
    @Override
    public EJBBinderResolutionResult resolveEJBBinder(DeploymentUnit unit, EJBReference ejbRef)
    {
-      return this.resolveEJBBinder(unit, new HashSet<DeploymentUnit>(), ejbRef);
+      EJBResolutionCache cache = EJBResolutionCache.getCache(unit);
+      if (cache.isCached(unit, ejbRef))
+      {
+         return cache.get(unit, ejbRef);
+      }
+      EJBBinderResolutionResult result = this.searchEJBBinder(unit, ejbRef);
+      // resolving may have (re)built bean indexes, and so dropped the cache we got hold of
+      EJBResolutionCache.getCache(unit).put(unit, ejbRef, result);
+      return result;
+   }
+
+   /**
+    * Resolves all the passed references by walking the {@link DeploymentUnit}s once. The bean index of 
+    * each unit is looked up once, and all the references which haven't been resolved in the preceding units
+    * are matched against it, by interface name, so every reference is resolved the way 
+    * {@link #resolveEJBBinder(DeploymentUnit, EJBReference)} resolves it.
+    * <p>
+    *   The resolution cache and the search order of the hierarchy are looked up once for the whole batch,
+    *   rather than once per reference. The units are always searched sequentially.
+    * </p>
+    * 
+    * @param unit The deployment unit within which the references will be resolved
+    * @param ejbRefs The references to resolve
+    * @return The result for each of the passed references, in the iteration order of <code>ejbRefs</code>.
+    *           The result of a reference which couldn't be resolved is null.
+    */
+   public Map<EJBReference, EJBBinderResolutionResult> resolveAll(DeploymentUnit unit, Collection<EJBReference> ejbRefs)
+   {
+      Map<EJBReference, EJBBinderResolutionResult> results = new LinkedHashMap<EJBReference, EJBBinderResolutionResult>();
+      Map<EJBReference, EJBLinkMatcher> pending = new LinkedHashMap<EJBReference, EJBLinkMatcher>();
+      EJBResolutionCache cache = EJBResolutionCache.getCache(unit);
+      for (EJBReference ejbRef : ejbRefs)
+      {
+         if (cache.isCached(unit, ejbRef))
+         {
+            results.put(ejbRef, cache.get(unit, ejbRef));
+         }
+         else
+         {
+            // keep the position of the reference in the results
+            results.put(ejbRef, null);
+            pending.put(ejbRef, new EJBLinkMatcher(ejbRef));
+         }
+      }
+      if (pending.isEmpty())
+      {
+         return results;
+      }
+
+      List<DeploymentUnit> searchOrder = DeploymentHierarchy.getHierarchy(unit).getSearchOrder(unit);
+      List<EJBReference> resolved = new ArrayList<EJBReference>(pending.size());
+      for (int i = 0; i < searchOrder.size() && !pending.isEmpty(); i++)
+      {
+         DeploymentUnit du = searchOrder.get(i);
+         EnterpriseBeanIndex index = this.getIndex(du);
+         if (index == null)
+         {
+            // no metadata found
+            continue;
+         }
+         for (Iterator<Map.Entry<EJBReference, EJBLinkMatcher>> it = pending.entrySet().iterator(); it.hasNext();)
+         {
+            Map.Entry<EJBReference, EJBLinkMatcher> entry = it.next();
+            EJBBinderResolutionResult binderResoultionResult = this.findBinder(du, index, entry.getKey(), entry.getValue());
+            if (binderResoultionResult != null)
+            {
+               results.put(entry.getKey(), binderResoultionResult);
+               resolved.add(entry.getKey());
+               it.remove();
+            }
+         }
+      }
+
+      // resolving may have (re)built bean indexes, and so dropped the cache we got hold of
+      cache = EJBResolutionCache.getCache(unit);
+      for (EJBReference ejbRef : resolved)
+      {
+         cache.put(unit, ejbRef, results.get(ejbRef));
+      }
+      // the ones left couldn't be resolved in the entire DU hierarchy
+      for (EJBReference ejbRef : pending.keySet())
+      {
+         cache.put(unit, ejbRef, null);
+      }
+      return results;
+   }
+
+   /**
+    * Forgets the results of the references resolved within the deployment hierarchy the 
+    * passed {@link DeploymentUnit} belongs to, as well as what is known about the structure
+    * of that hierarchy. The {@link EJBResolutionCacheDeployer} calls it whenever a unit carrying
+    * EJB metadata is deployed or undeployed.
+    * 
+    * @param unit A deployment unit of the hierarchy
+    */
+   public void invalidate(DeploymentUnit unit)
+   {
+      if (unit == null)
+      {
+         throw new IllegalArgumentException("Null deployment unit");
+      }
+      EJBResolutionCache.invalidate(unit);
+      DeploymentHierarchy.invalidate(unit);
    }
    
    /**
     * This method first tries to resolve the passed {@link EjbReference} in the passed <code>du</code>.
-    * If the jndi name cannot be resolved in that {@link DeploymentUnit}, then it tries to <i>recursively</i> resolve the reference
-    * in the child {@link DeploymentUnit}s of that {@link DeploymentUnit}. If the jndi-name still can't be resolved, then
-    * this method recursively repeats the resolution steps with the parent of the passed {@link DeploymentUnit}
+    * If the jndi name cannot be resolved in that {@link DeploymentUnit}, then it tries to resolve the reference
+    * in the descendant {@link DeploymentUnit}s of that {@link DeploymentUnit}. If the jndi-name still can't be resolved, then
+    * this method repeats the resolution steps with the parent of the passed {@link DeploymentUnit} (and its other children)
     * 
     * <p>
+    *   The order in which the {@link DeploymentUnit}s are searched is computed once per {@link DeploymentUnit}, see
+    *   {@link DeploymentHierarchy#getSearchOrder(DeploymentUnit)}.
+    * </p>
+    * <p>
     *   If the jndi-name cannot be resolved in any of the {@link DeploymentUnit}s in the hierarchy, then this method
     *   returns null. Else it returns the resolved jndi-name.
     * </p>
     *  
     * @param du The deployment unit within which the {@link EjbReference} will be resolved
-    * @param alreadyScannedDUs The {@link DeploymentUnit}s which have already been scanned for resolving the {@link EjbReference}
     * @param reference The {@link EjbReference} which is being resolved
     * @return Returns the jndi-name resolved out the {@link EjbReference}. If the jndi-name cannot be resolved, then this
     *           method returns null.
     */
-   private EJBBinderResolutionResult resolveEJBBinder(DeploymentUnit du, Collection<DeploymentUnit> alreadyScannedDUs, EJBReference reference)
+   private EJBBinderResolutionResult searchEJBBinder(DeploymentUnit du, EJBReference reference)
    {
-      // first find in the passed DU
-      EJBBinderResolutionResult binderResoultionResult = findBinder(du, reference);
-      // found, just return it
-      if (binderResoultionResult != null)
+      List<DeploymentUnit> searchOrder = DeploymentHierarchy.getHierarchy(du).getSearchOrder(du);
+      EJBLinkMatcher linkMatcher = new EJBLinkMatcher(reference);
+      if (this.parallelScanThreshold > 0 && searchOrder.size() >= this.parallelScanThreshold)
       {
-         return binderResoultionResult;
+         return this.searchEJBBinderInParallel(searchOrder, reference, linkMatcher);
       }
-
-      if (alreadyScannedDUs == null)
+      for (int i = 0; i < searchOrder.size(); i++)
       {
-         alreadyScannedDUs = new HashSet<DeploymentUnit>();
+         EJBBinderResolutionResult binderResoultionResult = findBinder(searchOrder.get(i), reference, linkMatcher);
+         // found, just return it
+         if (binderResoultionResult != null)
+         {
+            return binderResoultionResult;
+         }
       }
-      // add this DU to the already scanned DU collection
-      alreadyScannedDUs.add(du);
+      // couldn't resolve in the entire DU hierarchy, return null
+      return null;
+   }
 
-      // jndi-name not resolved in the passed DU, so let's
-      // check try resolving in its children DUs
-      List<DeploymentUnit> children = du.getChildren();
-      if (children != null)
+   /**
+    * Searches the passed {@link DeploymentUnit}s in parallel. The outcomes are consumed in search order, 
+    * so the result (or failure) is the same as the one of a sequential search: the first match wins, and
+    * a failure in a unit preceding the match is reported. The units following the match which haven't 
+    * been searched yet are skipped.
+    */
+   private EJBBinderResolutionResult searchEJBBinderInParallel(List<DeploymentUnit> searchOrder, final EJBReference reference,
+         final EJBLinkMatcher linkMatcher)
+   {
+      ExecutorService executor = this.getExecutor();
+      List<Future<EJBBinderResolutionResult>> outcomes = new ArrayList<Future<EJBBinderResolutionResult>>(searchOrder.size());
+      try
       {
-         for (DeploymentUnit child : children)
+         for (final DeploymentUnit unit : searchOrder)
          {
-            // already searched that one
-            if (alreadyScannedDUs.contains(child))
+            outcomes.add(executor.submit(new Callable<EJBBinderResolutionResult>()
             {
-               continue;
-            }
-            // try resolving in this child DU
-            binderResoultionResult = this.resolveEJBBinder(child, alreadyScannedDUs, reference);
-            // found in this child DU (or its nested child), return the jndi name
+               public EJBBinderResolutionResult call() throws Exception
+               {
+                  return findBinder(unit, reference, linkMatcher);
+               }
+            }));
+         }
+         for (Future<EJBBinderResolutionResult> outcome : outcomes)
+         {
+            EJBBinderResolutionResult binderResoultionResult = outcome.get();
+            // found, just return it
             if (binderResoultionResult != null)
             {
                return binderResoultionResult;
             }
-            // add the child DU to the already scanned DU collection
-            // so that we don't scan it again
-            alreadyScannedDUs.add(child);
          }
+         // couldn't resolve in the entire DU hierarchy, return null
+         return null;
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while resolving reference " + reference, ie);
       }
+      catch (ExecutionException ee)
+      {
+         Throwable cause = ee.getCause();
+         if (cause instanceof RuntimeException)
+         {
+            throw (RuntimeException) cause;
+         }
+         if (cause instanceof Error)
+         {
+            throw (Error) cause;
+         }
+         throw new RuntimeException(cause);
+      }
+      finally
+      {
+         // no need to search the units which follow the match (or failure)
+         for (Future<EJBBinderResolutionResult> outcome : outcomes)
+         {
+            outcome.cancel(false);
+         }
+      }
+   }
 
+   private synchronized ExecutorService getExecutor()
+   {
+      if (this.executor == null)
+      {
+         final AtomicInteger threadCount = new AtomicInteger();
+         ThreadFactory threadFactory = new ThreadFactory()
+         {
+            public Thread newThread(Runnable r)
+            {
+               Thread thread = new Thread(r, "EJBBinderResolver-" + threadCount.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            }
+         };
+         ThreadPoolExecutor executor = new ThreadPoolExecutor(this.parallelism, this.parallelism, 60L, TimeUnit.SECONDS,
+               new LinkedBlockingQueue<Runnable>(), threadFactory);
+         executor.allowCoreThreadTimeOut(true);
+         this.executor = executor;
+      }
+      return this.executor;
+   }
 
-      // we haven't yet resolved the jndi-name, so let's
-      // try resolving in our parent (and any of its children)
-      DeploymentUnit parent = du.getParent();
-      if (parent != null)
+   private EJBBinderResolutionResult findBinder(DeploymentUnit du, EJBReference reference, EJBLinkMatcher linkMatcher)
+   {
+      EnterpriseBeanIndex index = this.getIndex(du);
+      if (index == null)
       {
-         return this.resolveEJBBinder(parent, alreadyScannedDUs, reference);
+         // no metadata found
+         return null;
       }
-      // couldn't resolve in the entire DU hierarchy, return null
-      return null;
+      return this.findBinder(du, index, reference, linkMatcher);
    }
 
-   private EJBBinderResolutionResult findBinder(DeploymentUnit du, EJBReference reference)
+   /**
+    * Returns the index of the beans in the metadata of the passed unit, or null if the unit has no metadata
+    */
+   private EnterpriseBeanIndex getIndex(DeploymentUnit du)
    {
       // TODO: It's a bit too much to add an dependency on jboss-ejb3-common just for this constant attachment name.
       // So this hardcoding. 
@@ -173,28 +430,54 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
          metadata = du.getAttachment(JBossMetaData.class);
          if (metadata == null)
          {
-            // no metadata found
             return null;
          }
       }
+      return EnterpriseBeanIndex.getIndex(du, metadata);
+   }
+
+   private EJBBinderResolutionResult findBinder(DeploymentUnit du, EnterpriseBeanIndex index, EJBReference reference, EJBLinkMatcher linkMatcher)
+   {
       // Initialize
-      logger.debug("Resolving reference for " + reference + " in " + metadata);
+      logger.debug("Resolving reference for " + reference + " in " + index.getMetaData());
       List<JBossEnterpriseBeanMetaData> matches = new ArrayList<JBossEnterpriseBeanMetaData>();
 
-      // Get all Enterprise Beans contained in the metadata
-      JBossEnterpriseBeansMetaData beans = metadata.getEnterpriseBeans();
+      // Get the candidate Enterprise Beans contained in the metadata. If the reference names
+      // the bean, only the beans with that ejb-name can match
+      String referencedEjbName = reference.getEJBLink().getEjbName();
+      List<JBossEnterpriseBeanMetaData> beans = referencedEjbName == null ? index.getBeans() : index.getBeans(referencedEjbName);
 
+      // Get the requested bean interface 
+      String requestedInterface = reference.getBeanInterface();
+      if (requestedInterface == null || requestedInterface.trim().isEmpty())
+      {
+         for (JBossEnterpriseBeanMetaData bean : beans)
+         {
+            if (linkMatcher.accepts(bean, du))
+            {
+               throw new RuntimeException("beanInterface missing from ejb reference: " + reference);
+            }
+         }
+         return null;
+      }
+
+      // The beans which expose the requested interface directly (i.e. as business local, business 
+      // remote, remote home, local home, local or remote interface), or as their no-interface view, 
+      // are found without having to load any class. The requested interface might still be a 
+      // super-interface of the interfaces exposed by the other beans, which then match as well. 
+      List<JBossEnterpriseBeanMetaData> exposing = index.getBeansExposing(requestedInterface);
       String resolvedInterface = null;
-      // Loop through all EJBs
       for (JBossEnterpriseBeanMetaData bean : beans)
       {
-         // See if this is a match
-         String intf = this.getMatchingInterface(reference, bean, du);
+         if (!linkMatcher.accepts(bean, du))
+         {
+            continue;
+         }
+         String intf = isExposing(exposing, bean) ? requestedInterface : this.getMatchingSuperInterface(requestedInterface, bean, index);
          if (intf != null)
          {
             // mark it as the resolved interface
             resolvedInterface = intf;
-            // Add to the matches found
             matches.add(bean);
             logger.debug("Found match in EJB " + bean.getEjbName() + " for " + reference);
          }
@@ -230,172 +513,110 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
 
    }
 
+   private static boolean isExposing(List<JBossEnterpriseBeanMetaData> exposing, JBossEnterpriseBeanMetaData beanMetaData)
+   {
+      for (JBossEnterpriseBeanMetaData bean : exposing)
+      {
+         if (bean == beanMetaData)
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
    /**
-    * Determines whether the specified session bean is a match for the specified
-    * reference
+    * Returns the exposed interface of the passed bean which extends the requested interface, or null if
+    * there's none
     * 
-    * @param reference
+    * @param requestedInterface The bean interface of the reference
     * @param beanMetaData
-    * @param cl The ClassLoader for the specified metadata
+    * @param index The bean index of the deployment unit of the bean
     * @return
     */
-   private String getMatchingInterface(EJBReference reference, JBossEnterpriseBeanMetaData beanMetaData, DeploymentUnit unit)
+   private String getMatchingSuperInterface(String requestedInterface, JBossEnterpriseBeanMetaData beanMetaData, EnterpriseBeanIndex index)
    {
-      // We only work with Session beans, @Service beans and (EJB2.x) entity beans.
-      if (!beanMetaData.isSession() && !beanMetaData.isService() && !beanMetaData.isEntity())
-      {
-         return null;
-      }
-      
-      if (!this.acceptsEjbName(beanMetaData, reference, unit))
+      List<Class<?>> implementors = this.getExposedSuperTypes(beanMetaData, index).get(requestedInterface);
+      if (implementors == null)
       {
          return null;
       }
-      
-      // let's see if this is a no-interface view reference
-      if (this.hasNoInterfaceView(beanMetaData))
-      {
-         if(beanMetaData.getEjbClass().equals(reference.getBeanInterface()))
-         {
-            // it's a match (due to matching business interface)
-            return beanMetaData.getEjbClass();
-         }
-      }
-       
-      ClassLoader cl = unit.getClassLoader();
-      // Now get the interfaces that are directly eligible on the bean (i.e. business local, business remote,
-      // remote home, local home, local, remote interfaces).
-      Set<Class<?>> directlyEligibleInterfacesOnBean = this.getExposedInterfaces(beanMetaData, cl);
-
-      // Get the requested bean interface 
-      String requestedInterface = reference.getBeanInterface();
-      if (requestedInterface == null || requestedInterface.trim().isEmpty())
+      if (implementors.size() > 1)
       {
-         throw new RuntimeException("beanInterface missing from ejb reference: " + reference);
+         throw new RuntimeException("beanInterface specified, " + requestedInterface + ", is not unique within EJB " + beanMetaData.getEjbName());
       }
-      Class<?> type = this.loadClass(requestedInterface, cl);
+      return implementors.get(0).getName();
+   }
 
-      // If the directly eligible interfaces on the bean match the requested
-      // interface, then we have a match.
-      if (directlyEligibleInterfacesOnBean.contains(type))
-      {
-         return type.getName();
-      }
-      Class<?> resolvedInterface = null;
-      boolean matchFound = false;
-      for (Class<?> exposedIntf : directlyEligibleInterfacesOnBean)
+   /**
+    * Returns the supertype closure of the interfaces exposed by the passed bean, i.e. for each
+    * super-interface (or superclass) name, the exposed interfaces which are assignable to it.
+    * The closure is computed only once per {@link EnterpriseBeanIndex index}.
+    */
+   private Map<String, List<Class<?>>> getExposedSuperTypes(JBossEnterpriseBeanMetaData enterpriseBean, EnterpriseBeanIndex index)
+   {
+      Map<String, List<Class<?>>> superTypes = index.getExposedSuperTypes(enterpriseBean);
+      if (superTypes == null)
       {
-         if (type.isAssignableFrom(exposedIntf))
+         superTypes = new HashMap<String, List<Class<?>>>();
+         for (Class<?> exposedIntf : this.getExposedInterfaces(enterpriseBean, index))
          {
-            if (!matchFound)
+            Set<Class<?>> closure = new LinkedHashSet<Class<?>>();
+            this.collectSuperTypes(exposedIntf, closure);
+            for (Class<?> superType : closure)
             {
-               resolvedInterface = exposedIntf;
-               matchFound = true;
-               continue;
+               List<Class<?>> implementors = superTypes.get(superType.getName());
+               if (implementors == null)
+               {
+                  implementors = new ArrayList<Class<?>>(1);
+                  superTypes.put(superType.getName(), implementors);
+               }
+               implementors.add(exposedIntf);
             }
-            throw new RuntimeException("beanInterface specified, " + type + ", is not unique within EJB " + beanMetaData.getEjbName());
          }
+         index.setExposedSuperTypes(enterpriseBean, superTypes);
       }
-      return resolvedInterface == null ? null : resolvedInterface.getName();
-      
+      return superTypes;
    }
 
-   private Set<Class<?>> getExposedInterfaces(JBossEnterpriseBeanMetaData enterpriseBean, ClassLoader cl)
+   private void collectSuperTypes(Class<?> type, Set<Class<?>> closure)
    {
-      if ((enterpriseBean.isSession() || enterpriseBean.isService()) && (enterpriseBean instanceof JBossSessionBeanMetaData))
-      {
-         return this.getSessionBeanExposedInterfaces((JBossSessionBeanMetaData) enterpriseBean, cl);
-      }
-      if (enterpriseBean.isEntity() && (enterpriseBean instanceof JBossEntityBeanMetaData))
+      Class<?> superClass = type.isInterface() ? Object.class : type.getSuperclass();
+      if (superClass != null && closure.add(superClass))
       {
-         return this.getEntityBeanExposedInterfaces((JBossEntityBeanMetaData) enterpriseBean, cl); 
+         this.collectSuperTypes(superClass, closure);
       }
-      // return an empty set
-      return new HashSet<Class<?>>();
-   }
-
-   private Set<Class<?>> getSessionBeanExposedInterfaces(JBossSessionBeanMetaData smd, ClassLoader cl)
-   {
-      Set<Class<?>> interfaces = new HashSet<Class<?>>();
-
-      // Add all eligible bean interfaces
-      BusinessLocalsMetaData businessLocals = smd.getBusinessLocals();
-      BusinessRemotesMetaData businessRemotes = smd.getBusinessRemotes();
-      String home = smd.getHome();
-      String localHome = smd.getLocalHome();
-      if (businessLocals != null)
+      for (Class<?> superInterface : type.getInterfaces())
       {
-         for (String busLocal : businessLocals)
+         if (closure.add(superInterface))
          {
-            if (busLocal == null)
-            {
-               continue;
-            }
-            interfaces.add(this.loadClass(busLocal, cl));   
-         }
-         
-      }
-      if (businessRemotes != null)
-      {
-         for (String busRemote : businessRemotes)
-         {
-            if (busRemote == null)
-            {
-               continue;
-            }
-            interfaces.add(this.loadClass(busRemote, cl));   
+            this.collectSuperTypes(superInterface, closure);
          }
-
-      }
-      if (home != null && home.trim().length() > 0)
-      {
-         interfaces.add(this.loadClass(home, cl));
-      }
-      if (localHome != null && localHome.trim().length() > 0)
-      {
-         interfaces.add(this.loadClass(localHome, cl));
       }
-
-      return interfaces;
    }
 
-   private Set<Class<?>> getEntityBeanExposedInterfaces(JBossEntityBeanMetaData entityBean, ClassLoader cl)
+   /**
+    * Returns the interfaces exposed by the passed bean. They are loaded only once per
+    * {@link EnterpriseBeanIndex index}, and so once per deployment unit.
+    */
+   private Set<Class<?>> getExposedInterfaces(JBossEnterpriseBeanMetaData enterpriseBean, EnterpriseBeanIndex index)
    {
-      Set<Class<?>> interfaces = new HashSet<Class<?>>();
-
-      // Add all eligible bean interfaces
-      // local
-      String local = entityBean.getLocal();
-      if (local != null && !local.trim().isEmpty())
+      Set<Class<?>> interfaces = index.getExposedInterfaces(enterpriseBean);
+      if (interfaces == null)
       {
-         interfaces.add(this.loadClass(local, cl));
-      }
-      // remote
-      String remote = entityBean.getRemote();
-      if (remote != null && remote.trim().isEmpty())
-      {
-         interfaces.add(this.loadClass(remote, cl));
-      }
-      // remote home
-      String home = entityBean.getHome();
-      if (home != null && !home.trim().isEmpty())
-      {
-         interfaces.add(this.loadClass(home, cl));
-      }
-      // local home
-      String localHome = entityBean.getLocalHome();
-      if (localHome != null && !localHome.trim().isEmpty())
-      {
-         interfaces.add(this.loadClass(localHome, cl));
+         interfaces = new HashSet<Class<?>>();
+         for (String name : index.getExposedInterfaceNames(enterpriseBean))
+         {
+            interfaces.add(this.loadClass(name, index));
+         }
+         index.setExposedInterfaces(enterpriseBean, interfaces);
       }
-
       return interfaces;
    }
 
-
    private String getModuleName(DeploymentUnit unit)
    {
-      return this.componentInformer.getModuleName(unit);
+      return DeploymentNames.getNames(unit).getModuleName(this.componentInformer, unit);
    }
    
    private String getJNDIName(DeploymentUnit unit, JBossEnterpriseBeanMetaData beanMetaData, String interfaceFQN)
@@ -413,6 +634,12 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
 
    private String getGlobalJNDINameForSessionBean(DeploymentUnit unit, JBossSessionBeanMetaData sessionBean, String interfaceFQN)
    {
+      DeploymentNames names = DeploymentNames.getNames(unit);
+      String name = names.get(unit, GLOBAL_JNDI_NAME, sessionBean.getEjbName(), interfaceFQN);
+      if (name != null)
+      {
+         return name;
+      }
       StringBuilder globalJNDIName = new StringBuilder("java:global/");
       DeploymentUnit topLevelUnit = unit.isTopLevel() ? unit : unit.getTopLevel();
       if (topLevelUnit.isAttachmentPresent(JBossAppMetaData.class))
@@ -433,7 +660,7 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
          globalJNDIName.append(interfaceFQN);
       }
       
-      return globalJNDIName.toString();
+      return names.put(unit, GLOBAL_JNDI_NAME, sessionBean.getEjbName(), interfaceFQN, globalJNDIName.toString());
 
    }
 
@@ -459,73 +686,66 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
       return jndiName;
    }
    /**
-    * Returns true if the passed session bean metadata represents a EJB3.1 bean
-    * which exposes a no-interface view. Else returns false.
-    * 
-    * @param beanMetaData Session bean metadata
-    * @return
+    * Matches the beans against the {@link EJBLink} of a reference, for the duration of a single resolution.
+    * The unit a relative ejb-link points to is looked up at most once (or a few times, when several units are
+    * searched in parallel). 
     */
-   private boolean hasNoInterfaceView(JBossEnterpriseBeanMetaData beanMetaData)
+   private class EJBLinkMatcher
    {
-      if (!beanMetaData.isSession() || !(beanMetaData instanceof JBossSessionBeanMetaData))
-      {
-         return false;
-      }
-      JBossSessionBeanMetaData sessionBean = (JBossSessionBeanMetaData) beanMetaData;
-      if (isEJB31(sessionBean) == false)
+      private final EJBReference reference;
+
+      private final EJBLink ejbLink;
+
+      private volatile DeploymentUnit relativeDU;
+
+      EJBLinkMatcher(EJBReference reference)
       {
-         return false;
+         this.reference = reference;
+         this.ejbLink = reference.getEJBLink();
       }
-      if (sessionBean instanceof JBossSessionBean31MetaData == false)
+
+      boolean accepts(JBossEnterpriseBeanMetaData beanMetaData, DeploymentUnit du)
       {
-         return false;
-      }
-      JBossSessionBean31MetaData sessionBean31 = (JBossSessionBean31MetaData) beanMetaData;
-      return sessionBean31.isNoInterfaceBean();
-   }
+         // the requested bean interface matches the nointerface view bean class name
+         // Now let's see if there's an explicit bean name specified. If such an 
+         // explicit bean name is specified then make sure it matches the current bean's name
+         if (!this.ejbLink.isSpecified())
+         {
+            return true;
+         }
+         if (this.ejbLink.isMalformed())
+         {
+            throw new RuntimeException("ejbLink: " + this.ejbLink + " in ejb reference: " + reference + " should not end with a / or a #");
+         }
+         if (!this.ejbLink.getEjbName().equals(beanMetaData.getEjbName()))
+         {
+            return false;
+         }
 
-   /**
-    * Returns true if the passed session bean metadata represents a EJB3.1 bean
-    * @param smd Session bean metadata
-    * @return
-    */
-   private boolean isEJB31(JBossSessionBeanMetaData smd)
-   {
-      JBossMetaData jbossMetaData = smd.getJBossMetaData();
-      return jbossMetaData.isEJB31();
-   }
+         String path = this.ejbLink.getPath();
+         if (path != null)
+         {
+            if (path.equals(du.getSimpleName()))
+            {
+               return true;
+            }
+            return du.getName().equals(this.getRelativeDeploymentUnit().getName());
+         }
+
+         String moduleName = this.ejbLink.getModuleName();
+         if (moduleName != null)
+         {
+            return moduleName.equals(getModuleName(du));
+         }
 
-   private boolean acceptsEjbName(JBossEnterpriseBeanMetaData beanMetaData, EJBReference reference, DeploymentUnit du)
-   {
-      // the requested bean interface matches the nointerface view bean class name
-      // Now let's see if there's an explicit bean name specified. If such an 
-      // explicit bean name is specified then make sure it matches the current bean's name
-      String ejbLink = reference.getBeanName();
-      if (ejbLink == null || ejbLink.trim().isEmpty())
-      {
          return true;
       }
-      
-      if (ejbLink.endsWith("#") || ejbLink.endsWith("/"))
-      {
-         throw new RuntimeException("ejbLink: " + ejbLink + " in ejb reference: " + reference + " should not end with a / or a #");
-      }
-      
-      int indexOfHash = ejbLink.indexOf("#");
-      int indexOfForwardSlash = ejbLink.indexOf("/");
-      if (indexOfHash == -1 && indexOfForwardSlash == -1)
-      {
-         return ejbLink.equals(beanMetaData.getEjbName());
-      }
-      
-      if (indexOfHash != -1)
+
+      private DeploymentUnit getRelativeDeploymentUnit()
       {
-         String path = ejbLink.substring(0, indexOfHash);
-         String referencedEjbName = ejbLink.substring(indexOfHash + 1, ejbLink.length());
-         
-         if (path.equals(du.getSimpleName()) && referencedEjbName.equals(beanMetaData.getEjbName()))
+         if (this.relativeDU != null)
          {
-            return true;
+            return this.relativeDU;
          }
          DeploymentUnit ownerDeploymentUnit = reference.getOwnerDeploymentUnit();
          DeploymentUnit parentOfOwnerDU = null;
@@ -543,32 +763,13 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
          }
          if (parentOfOwnerDU == null)
          {
-            throw new RuntimeException("Cannot resolve ejbLink: " + ejbLink + " in reference " + reference
+            throw new RuntimeException("Cannot resolve ejbLink: " + this.ejbLink + " in reference " + reference
                   + " from unit: " + ownerDeploymentUnit
                   + " because the unit is a top-level unit and hence cannot have relative path reference");
          }
-         DeploymentUnit relativeDU = this.getRelativeDeploymentUnit(parentOfOwnerDU, path);
-         if (du.getName().equals(relativeDU.getName()) && referencedEjbName.equals(beanMetaData.getEjbName()))
-         {
-            return true;
-         }
-         
-         return false;
-      }
-      
-      if (indexOfForwardSlash != -1)
-      {
-         String moduleName = ejbLink.substring(0, indexOfForwardSlash);
-         String referencedEjbName = ejbLink.substring(indexOfForwardSlash + 1, ejbLink.length());
-         
-         if (moduleName.equals(this.getModuleName(du)) && referencedEjbName.equals(beanMetaData.getEjbName()))
-         {
-            return true;
-         }
-         return false;
+         this.relativeDU = ScopedEJBBinderResolver.this.getRelativeDeploymentUnit(parentOfOwnerDU, this.ejbLink.getPath());
+         return this.relativeDU;
       }
-      
-      return ejbLink.equals(beanMetaData.getEjbName());
    }
 
    private DeploymentUnit getRelativeDeploymentUnit(DeploymentUnit current, String path)
@@ -582,21 +783,19 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
       {
          relativePathFromTopLevelDU = relativePathFromTopLevelDU + File.pathSeparator + path;
       }
-      for (DeploymentUnit child : current.getChildren())
+      DeploymentUnit child = DeploymentHierarchy.getHierarchy(current).getChild(current, relativePathFromTopLevelDU);
+      if (child != null)
       {
-         if (child.getRelativePath().equals(relativePathFromTopLevelDU))
-         {
-            return child;
-         }
+         return child;
       }
       throw new IllegalArgumentException("Can't find a deployment unit with path " + path + " from unit " + current);
    }
 
-   private Class<?> loadClass(String className, ClassLoader cl)
+   private Class<?> loadClass(String className, EnterpriseBeanIndex index)
    {
       try
       {
-         return cl.loadClass(className);
+         return index.loadClass(className);
       }
       catch (ClassNotFoundException cnfe)
       {
@@ -25,6 +25,7 @@ package org.jboss.ejb3.jndi.deployers.resolver;
 import org.jboss.beans.metadata.spi.builder.BeanMetaDataBuilder;
 import org.jboss.dependency.spi.ControllerState;
 import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.jndi.deployers.DeploymentNames;
 import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
 import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
 import org.jboss.metadata.ejb.spec.SessionType;
@@ -80,13 +81,18 @@ public class SessionBeanDependencyBuilder implements DependencyBuilder
 
    protected Object getName(String prefix, DeploymentUnit unit, String bean)
    {
+      DeploymentNames names = DeploymentNames.getNames(unit);
+      String name = names.get(unit, prefix, bean, null);
+      if (name != null)
+         return name;
+
       StringBuilder sb = new StringBuilder(prefix);
-      String appName = informer.getApplicationName(unit);
+      String appName = names.getApplicationName(informer, unit);
       if (appName != null)
          sb.append("application=").append(appName).append(",");
-      sb.append("module=").append(informer.getModuleName(unit)).append(",");
+      sb.append("module=").append(names.getModuleName(informer, unit)).append(",");
       sb.append("bean=").append(bean);
-      return sb.toString();
+      return names.put(unit, prefix, bean, null, sb.toString());
    }
 
    protected void handleSingleton(DeploymentUnit unit, BeanMetaDataBuilder builder, JBossSessionBeanMetaData jsbmd)
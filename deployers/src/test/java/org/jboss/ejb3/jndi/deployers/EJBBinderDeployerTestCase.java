@@ -0,0 +1,429 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.RETURNS_SMART_NULLS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.beans.metadata.spi.BeanMetaData;
+import org.jboss.beans.metadata.spi.DemandMetaData;
+import org.jboss.beans.metadata.spi.PropertyMetaData;
+import org.jboss.dependency.spi.ControllerMode;
+import org.jboss.dependency.spi.ControllerState;
+import org.jboss.deployers.spi.DeploymentException;
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
+import org.jboss.ejb3.jndi.deployers.proxy.LegacyProxyFactory;
+import org.jboss.ejb3.jndi.deployers.resolver.SessionBeanDependencyBuilder;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+import org.jboss.metadata.ejb.spec.SessionType;
+import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests the beans the {@link EJBBinderDeployer} produces for the session beans of a module.
+ */
+public class EJBBinderDeployerTestCase
+{
+   private EJBBinderDeployer deployer;
+
+   @Before
+   public void before()
+   {
+      JavaEEComponentInformer informer = mock(JavaEEComponentInformer.class, RETURNS_SMART_NULLS);
+      doReturn(null).when(informer).getApplicationName(any(DeploymentUnit.class));
+      doReturn("jar").when(informer).getModuleName(any(DeploymentUnit.class));
+      doAnswer(new Answer<String>()
+      {
+         public String answer(InvocationOnMock invocation)
+         {
+            return ((DeploymentUnit) invocation.getArguments()[0]).getSimpleName();
+         }
+      }).when(informer).getComponentName(any(DeploymentUnit.class));
+
+      this.deployer = new EJBBinderDeployer(informer);
+      this.deployer.addDependencyBuilder(new SessionBeanDependencyBuilder(informer));
+   }
+
+   /**
+    * Tests that the demands of the dependency builders on the binder of each session bean
+    * are kept when the session beans of the module are bound by one binder
+    */
+   @Test
+   public void testAggregateModuleBinderKeepsBeanDemands() throws Exception
+   {
+      this.deployer.setAggregateModuleBinders(true);
+
+      JBossSessionBeanMetaData a = mock(JBossSessionBeanMetaData.class);
+      when(a.isSession()).thenReturn(true);
+      when(a.isStateless()).thenReturn(true);
+      when(a.getSessionType()).thenReturn(SessionType.Stateless);
+      when(a.getEjbName()).thenReturn("A");
+      when(a.getContainerName()).thenReturn("jboss.j2ee:jar=jar.jar,name=A,service=EJB3");
+
+      JBossSessionBean31MetaData b = mock(JBossSessionBean31MetaData.class);
+      when(b.isSession()).thenReturn(true);
+      when(b.getSessionType()).thenReturn(SessionType.Singleton);
+      when(b.isNoInterfaceBean()).thenReturn(true);
+      when(b.getEjbName()).thenReturn("B");
+      when(b.getContainerName()).thenReturn("jboss.j2ee:jar=jar.jar,name=B,service=EJB3");
+
+      DeploymentUnit module = unit(null, "jar.jar", null);
+      DeploymentUnit componentA = unit(module, "A", a);
+      DeploymentUnit componentB = unit(module, "B", b);
+      this.deployer.deploy(componentA);
+      this.deployer.deploy(componentB);
+
+      String moduleBinderName = "jboss.ejb3:module=jar,service=ModuleEJBBinder";
+      BeanMetaData moduleBinder = (BeanMetaData) module.getAttachment(moduleBinderName);
+      Assert.assertNotNull(moduleBinder);
+      // no demands on the containers, nor aliases for the binders of the session beans
+      Assert.assertTrue(demands(moduleBinder).isEmpty());
+      Assert.assertTrue(moduleBinder.getAliases() == null || moduleBinder.getAliases().isEmpty());
+
+      BeanMetaData binderA = (BeanMetaData) module.getAttachment("jboss.ejb3:module=jar,component=A,service=EJBBinder");
+      Assert.assertNotNull(binderA);
+      Assert.assertEquals(AggregatedEJBBinder.class.getName(), binderA.getBean());
+      Assert.assertEquals("bind", binderA.getStart().getMethodName());
+      // injected with the module binder
+      Assert.assertEquals(moduleBinderName, binderA.getConstructor().getParameters().get(0).getValue().getUnderlyingValue());
+      Assert.assertEquals("A", binderA.getConstructor().getParameters().get(1).getValue().getUnderlyingValue());
+      Map<Object, ControllerState> demands = demands(binderA);
+      Assert.assertEquals(1, demands.size());
+      Assert.assertEquals(ControllerState.START, demands.get(a.getContainerName()));
+
+      BeanMetaData binderB = (BeanMetaData) module.getAttachment("jboss.ejb3:module=jar,component=B,service=EJBBinder");
+      Assert.assertNotNull(binderB);
+      demands = demands(binderB);
+      Assert.assertEquals(2, demands.size());
+      Assert.assertEquals(ControllerState.START, demands.get("jboss-ejb3-singleton-jndi-binder:module=jar,bean=B"));
+      Assert.assertEquals(ControllerState.START, demands.get("jboss-ejb3-nointerface-jndi-binder:module=jar,bean=B"));
+   }
+
+   /**
+    * Tests that the binder of a session bean hands its names over on redeploy once a grace period is set
+    */
+   @Test
+   public void testRedeployGracePeriod() throws Exception
+   {
+      JBossSessionBeanMetaData a = mock(JBossSessionBeanMetaData.class);
+      when(a.isSession()).thenReturn(true);
+      when(a.getSessionType()).thenReturn(SessionType.Stateful);
+      when(a.getEjbName()).thenReturn("A");
+
+      DeploymentUnit module = unit(null, "jar.jar", null);
+      DeploymentUnit componentA = unit(module, "A", a);
+      this.deployer.deploy(componentA);
+      String binderName = "jboss.ejb3:module=jar,component=A,service=EJBBinder";
+      BeanMetaData binder = (BeanMetaData) module.getAttachment(binderName);
+      Assert.assertEquals(EJBBinder.class.getName(), binder.getBean());
+      Assert.assertEquals("unbind", binder.getStop().getMethodName());
+      Assert.assertEquals(0, this.deployer.getRedeployGracePeriod());
+
+      this.deployer.setRedeployGracePeriod(1000);
+      try
+      {
+         this.deployer.undeploy(componentA);
+         module = unit(null, "jar.jar", null);
+         this.deployer.deploy(unit(module, "A", a));
+         binder = (BeanMetaData) module.getAttachment(binderName);
+         Assert.assertEquals(RedeployableEJBBinder.class.getName(), binder.getBean());
+         Assert.assertEquals("start", binder.getStart().getMethodName());
+         Assert.assertEquals("stop", binder.getStop().getMethodName());
+         Assert.assertEquals(3, binder.getConstructor().getParameters().size());
+         Assert.assertEquals(binderName, binder.getConstructor().getParameters().get(1).getValue().getUnderlyingValue());
+      }
+      finally
+      {
+         this.deployer.stop();
+      }
+   }
+
+   /**
+    * Tests that the barrier of a module demands the binder of every session bean of the module
+    * when binding asynchronously
+    */
+   @Test
+   public void testBarrierDemandsEveryBinder() throws Exception
+   {
+      this.deployer.setAsynchronousBind(true);
+      DeploymentUnit module = assertBarrierDemandsEveryBinder(EJBBinder.class);
+      BeanMetaData binder = (BeanMetaData) module.getAttachment("jboss.ejb3:module=jar,component=A,service=EJBBinder");
+      Assert.assertEquals(ControllerMode.ASYNCHRONOUS, binder.getMode());
+   }
+
+   /**
+    * Tests that the barrier of a module demands the binder of every session bean of the module
+    * when binding asynchronously through a module binder
+    */
+   @Test
+   public void testBarrierDemandsEveryAggregatedBinder() throws Exception
+   {
+      this.deployer.setAsynchronousBind(true);
+      this.deployer.setAggregateModuleBinders(true);
+      DeploymentUnit module = assertBarrierDemandsEveryBinder(AggregatedEJBBinder.class);
+      BeanMetaData binder = (BeanMetaData) module.getAttachment("jboss.ejb3:module=jar,component=A,service=EJBBinder");
+      Assert.assertEquals(ControllerMode.ASYNCHRONOUS, binder.getMode());
+      // the module binder binds nothing itself
+      BeanMetaData moduleBinder = (BeanMetaData) module.getAttachment("jboss.ejb3:module=jar,service=ModuleEJBBinder");
+      Assert.assertNull(moduleBinder.getStart());
+   }
+
+   /**
+    * Deploys 3 session beans into a module and checks the barrier of the module demands their binders
+    *
+    * @param binderClass the class of the binder beans
+    * @return the module unit
+    */
+   private DeploymentUnit assertBarrierDemandsEveryBinder(Class<?> binderClass) throws Exception
+   {
+      DeploymentUnit module = unit(null, "jar.jar", null);
+      for (String ejbName : new String[] {"A", "B", "C"})
+      {
+         JBossSessionBeanMetaData bean = mock(JBossSessionBeanMetaData.class);
+         when(bean.isSession()).thenReturn(true);
+         when(bean.getSessionType()).thenReturn(SessionType.Stateful);
+         when(bean.getEjbName()).thenReturn(ejbName);
+         this.deployer.deploy(unit(module, ejbName, bean));
+      }
+
+      BeanMetaData barrier = (BeanMetaData) module.getAttachment("jboss.ejb3:module=jar,service=EJBBinderBarrier");
+      Assert.assertNotNull(barrier);
+      Assert.assertEquals(EJBBinderBarrier.class.getName(), barrier.getBean());
+      Map<Object, ControllerState> demands = demands(barrier);
+      Assert.assertEquals(3, demands.size());
+      for (String ejbName : new String[] {"A", "B", "C"})
+      {
+         String binderName = "jboss.ejb3:module=jar,component=" + ejbName + ",service=EJBBinder";
+         Assert.assertEquals(ControllerState.START, demands.get(binderName));
+         BeanMetaData binder = (BeanMetaData) module.getAttachment(binderName);
+         Assert.assertEquals(binderClass.getName(), binder.getBean());
+      }
+      return module;
+   }
+
+   /**
+    * Tests that a proxy factory can be selected by name, through the unit of the session bean
+    */
+   @Test
+   public void testProxyFactorySelectedByName() throws Exception
+   {
+      ProxyFactory lazy = mock(ProxyFactory.class);
+      this.deployer.addProxyFactory("lazy", lazy);
+      DeploymentUnit module = unit(null, "jar.jar", null);
+      DeploymentUnit component = unit(module, "A", statefulBean("A"));
+      component.addAttachment(EJBBinderDeployer.PROXY_FACTORY_ATTACHMENT, "lazy");
+      this.deployer.deploy(component);
+      Assert.assertSame(lazy, proxyFactory(module, "A"));
+   }
+
+   /**
+    * Tests that a proxy factory attached as such is used as is
+    */
+   @Test
+   public void testProxyFactoryAttached() throws Exception
+   {
+      ProxyFactory attached = mock(ProxyFactory.class);
+      DeploymentUnit module = unit(null, "jar.jar", null);
+      DeploymentUnit component = unit(module, "A", statefulBean("A"));
+      component.addAttachment(EJBBinderDeployer.PROXY_FACTORY_ATTACHMENT, attached);
+      this.deployer.deploy(component);
+      Assert.assertSame(attached, proxyFactory(module, "A"));
+   }
+
+   /**
+    * Tests that the proxy factory selected for a unit applies to the session beans of its children,
+    * unless they select one of their own
+    */
+   @Test
+   public void testProxyFactoryInherited() throws Exception
+   {
+      ProxyFactory lazy = mock(ProxyFactory.class);
+      ProxyFactory attached = mock(ProxyFactory.class);
+      this.deployer.addProxyFactory("lazy", lazy);
+      DeploymentUnit module = unit(null, "jar.jar", null);
+      module.addAttachment(EJBBinderDeployer.PROXY_FACTORY_ATTACHMENT, "lazy");
+      this.deployer.deploy(unit(module, "A", statefulBean("A")));
+      DeploymentUnit component = unit(module, "B", statefulBean("B"));
+      component.addAttachment(EJBBinderDeployer.PROXY_FACTORY_ATTACHMENT, attached);
+      this.deployer.deploy(component);
+      Assert.assertSame(lazy, proxyFactory(module, "A"));
+      Assert.assertSame(attached, proxyFactory(module, "B"));
+   }
+
+   /**
+    * Tests that selecting a proxy factory which isn't registered fails the deployment
+    */
+   @Test
+   public void testUnknownProxyFactory() throws Exception
+   {
+      DeploymentUnit module = unit(null, "jar.jar", null);
+      module.addAttachment(EJBBinderDeployer.PROXY_FACTORY_ATTACHMENT, "unknown");
+      try
+      {
+         this.deployer.deploy(unit(module, "A", statefulBean("A")));
+         Assert.fail("Expected the unknown proxy factory to fail the deployment");
+      }
+      catch (DeploymentException e)
+      {
+         Assert.assertTrue(e.getMessage(), e.getMessage().contains("Unknown proxy factory unknown"));
+      }
+      Assert.assertNull(module.getAttachment("jboss.ejb3:module=jar,component=A,service=EJBBinder"));
+   }
+
+   /**
+    * Tests that the default proxy factory is used when none is selected
+    */
+   @Test
+   public void testDefaultProxyFactory() throws Exception
+   {
+      ProxyFactory lazy = mock(ProxyFactory.class);
+      this.deployer.addProxyFactory("lazy", lazy);
+      DeploymentUnit module = unit(null, "jar.jar", null);
+      this.deployer.deploy(unit(module, "A", statefulBean("A")));
+      Assert.assertTrue(proxyFactory(module, "A") instanceof LegacyProxyFactory);
+
+      ProxyFactory proxyFactory = mock(ProxyFactory.class);
+      this.deployer.setProxyFactory(proxyFactory);
+      this.deployer.deploy(unit(module, "B", statefulBean("B")));
+      Assert.assertSame(proxyFactory, proxyFactory(module, "B"));
+   }
+
+   /**
+    * Returns the proxy factory set on the binder of a session bean
+    */
+   private static Object proxyFactory(DeploymentUnit module, String ejbName)
+   {
+      BeanMetaData binder = (BeanMetaData) module.getAttachment("jboss.ejb3:module=jar,component=" + ejbName + ",service=EJBBinder");
+      Assert.assertNotNull(binder);
+      for (PropertyMetaData property : binder.getProperties())
+      {
+         if (property.getName().equals("proxyFactory"))
+            return property.getValue().getUnderlyingValue();
+      }
+      Assert.fail("No proxy factory set on " + binder.getName());
+      return null;
+   }
+
+   private static JBossSessionBeanMetaData statefulBean(String ejbName)
+   {
+      JBossSessionBeanMetaData bean = mock(JBossSessionBeanMetaData.class);
+      when(bean.isSession()).thenReturn(true);
+      when(bean.getSessionType()).thenReturn(SessionType.Stateful);
+      when(bean.getEjbName()).thenReturn(ejbName);
+      return bean;
+   }
+
+   /**
+    * Returns the demands of the bean, by the demanded name, with the state they're required at
+    */
+   private static Map<Object, ControllerState> demands(BeanMetaData bean)
+   {
+      Map<Object, ControllerState> demands = new HashMap<Object, ControllerState>();
+      Set<DemandMetaData> demandMetaData = bean.getDemands();
+      if (demandMetaData != null)
+      {
+         for (DemandMetaData demand : demandMetaData)
+         {
+            demands.put(demand.getDemand(), demand.getWhenRequired());
+         }
+      }
+      return demands;
+   }
+
+   /**
+    * Creates a deployment unit which keeps its attachments
+    *
+    * @param parent The parent unit, null for a top-level unit
+    * @param simpleName The simple name of the unit
+    * @param bean The session bean of the unit, can be null
+    */
+   @SuppressWarnings("unchecked")
+   private static DeploymentUnit unit(DeploymentUnit parent, String simpleName, JBossSessionBeanMetaData bean)
+   {
+      DeploymentUnit unit = mock(DeploymentUnit.class);
+      // not computed while stubbing, since it calls another mock
+      String name = "vfs:///" + (parent == null ? simpleName : parent.getSimpleName() + "/" + simpleName);
+      when(unit.getName()).thenReturn(name);
+      when(unit.getSimpleName()).thenReturn(simpleName);
+      when(unit.getParent()).thenReturn(parent);
+      when(unit.isTopLevel()).thenReturn(parent == null);
+      when(unit.getTopLevel()).thenReturn(parent == null ? unit : parent);
+      when(unit.getClassLoader()).thenReturn(EJBBinderDeployerTestCase.class.getClassLoader());
+
+      final Map<String, Object> attachments = new ConcurrentHashMap<String, Object>();
+      Answer<Object> get = new Answer<Object>()
+      {
+         public Object answer(InvocationOnMock invocation)
+         {
+            return attachments.get(key(invocation.getArguments()[0]));
+         }
+      };
+      doAnswer(get).when(unit).getAttachment(any(Class.class));
+      doAnswer(get).when(unit).getAttachment(anyString());
+      Answer<Object> add = new Answer<Object>()
+      {
+         public Object answer(InvocationOnMock invocation)
+         {
+            return attachments.put(key(invocation.getArguments()[0]), invocation.getArguments()[1]);
+         }
+      };
+      doAnswer(add).when(unit).addAttachment(any(Class.class), any());
+      doAnswer(add).when(unit).addAttachment(anyString(), any());
+      doAnswer(new Answer<Object>()
+      {
+         public Object answer(InvocationOnMock invocation)
+         {
+            return attachments.remove(key(invocation.getArguments()[0]));
+         }
+      }).when(unit).removeAttachment(any(Class.class));
+
+      if (bean != null)
+      {
+         attachments.put(JBossEnterpriseBeanMetaData.class.getName(), bean);
+         attachments.put(JBossSessionBeanMetaData.class.getName(), bean);
+      }
+      return unit;
+   }
+
+   private static String key(Object attachment)
+   {
+      return attachment instanceof Class<?> ? ((Class<?>) attachment).getName() : (String) attachment;
+   }
+}
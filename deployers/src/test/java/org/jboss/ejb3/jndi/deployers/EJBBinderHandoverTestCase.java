@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests that the {@link EJBBinderHandover} hands the names of a stopped binder over to the binder
+ * replacing it on redeploy.
+ */
+public class EJBBinderHandoverTestCase
+{
+   private static final String NAME = "jboss.ejb3:module=jar,component=A,service=EJBBinder";
+
+   private EJBBinderHandover handover;
+
+   @After
+   public void after()
+   {
+      if (handover != null)
+         handover.stop();
+   }
+
+   @Test
+   public void testRedeployTakesOver() throws Exception
+   {
+      handover = new EJBBinderHandover(60000);
+      EJBBinder previous = mock(EJBBinder.class);
+      handover.bind(NAME, previous);
+      verify(previous).bind();
+
+      handover.release(NAME, previous);
+      EJBBinder redeployed = mock(EJBBinder.class);
+      handover.bind(NAME, redeployed);
+      verify(redeployed).rebind(previous);
+      verify(redeployed, never()).bind();
+      verify(previous, never()).unbind();
+
+      // nothing is retained anymore
+      handover.stop();
+      verify(previous, never()).unbind();
+   }
+
+   @Test
+   public void testOtherBinderBindsItself() throws Exception
+   {
+      handover = new EJBBinderHandover(60000);
+      EJBBinder previous = mock(EJBBinder.class);
+      handover.release(NAME, previous);
+      EJBBinder other = mock(EJBBinder.class);
+      handover.bind("jboss.ejb3:module=jar,component=B,service=EJBBinder", other);
+      verify(other).bind();
+      verify(other, never()).rebind(previous);
+
+      handover.stop();
+      verify(previous).unbind();
+   }
+
+   @Test
+   public void testUnbindOnceExpired() throws Exception
+   {
+      handover = new EJBBinderHandover(10);
+      EJBBinder previous = mock(EJBBinder.class);
+      final CountDownLatch unbound = new CountDownLatch(1);
+      doAnswer(new Answer<Object>()
+      {
+         public Object answer(InvocationOnMock invocation)
+         {
+            unbound.countDown();
+            return null;
+         }
+      }).when(previous).unbind();
+      handover.release(NAME, previous);
+      Assert.assertTrue("Not unbound once the grace period is over", unbound.await(5, TimeUnit.SECONDS));
+
+      // too late to take over
+      EJBBinder redeployed = mock(EJBBinder.class);
+      handover.bind(NAME, redeployed);
+      verify(redeployed).bind();
+      verify(redeployed, never()).rebind(previous);
+   }
+
+   @Test(expected = NamingException.class)
+   public void testFailedTakeOverUnbindsPrevious() throws Exception
+   {
+      handover = new EJBBinderHandover(60000);
+      EJBBinder previous = mock(EJBBinder.class);
+      handover.release(NAME, previous);
+      EJBBinder redeployed = mock(EJBBinder.class);
+      doThrow(new NamingException("failed")).when(redeployed).rebind(previous);
+      try
+      {
+         handover.bind(NAME, redeployed);
+      }
+      finally
+      {
+         verify(previous).unbind();
+      }
+   }
+}
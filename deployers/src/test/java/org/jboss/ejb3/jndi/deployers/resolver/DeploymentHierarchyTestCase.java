@@ -0,0 +1,204 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the search order computed by {@link DeploymentHierarchy} with the order in which
+ * the recursive resolution it replaced used to visit the deployment units.
+ */
+public class DeploymentHierarchyTestCase
+{
+   @Test
+   public void testSingleUnit()
+   {
+      DeploymentUnit jar = unit(null, "");
+
+      assertSearchOrders(jar);
+      Assert.assertEquals(1, new DeploymentHierarchy(jar).getSearchOrder(jar).size());
+   }
+
+   @Test
+   public void testEar()
+   {
+      DeploymentUnit ear = unit(null, "");
+      DeploymentUnit ejbJar = unit(ear, "ejb.jar");
+      unit(ejbJar, "ejb.jar/component");
+      DeploymentUnit war = unit(ear, "web.war");
+      unit(war, "web.war/WEB-INF/lib/ejb-in-war.jar");
+      unit(ear, "other.jar");
+
+      assertSearchOrders(ear);
+
+      // the unit itself, its descendants, then up the hierarchy
+      List<DeploymentUnit> searchOrder = new DeploymentHierarchy(ear).getSearchOrder(war);
+      Assert.assertSame(war, searchOrder.get(0));
+      Assert.assertSame(war.getChildren().get(0), searchOrder.get(1));
+      Assert.assertSame(ear, searchOrder.get(2));
+      Assert.assertSame(ejbJar, searchOrder.get(3));
+   }
+
+   @Test
+   public void testNullChildren()
+   {
+      DeploymentUnit ear = unit(null, "");
+      DeploymentUnit jar = unit(ear, "ejb.jar");
+      when(jar.getChildren()).thenReturn(null);
+      unit(ear, "other.jar");
+
+      assertSearchOrders(ear);
+   }
+
+   @Test
+   public void testRandomHierarchies()
+   {
+      Random random = new Random(20100819);
+      for (int i = 0; i < 50; i++)
+      {
+         DeploymentUnit root = unit(null, "");
+         List<DeploymentUnit> units = new ArrayList<DeploymentUnit>();
+         units.add(root);
+         int size = 1 + random.nextInt(30);
+         for (int j = 1; j < size; j++)
+         {
+            DeploymentUnit parent = units.get(random.nextInt(units.size()));
+            units.add(unit(parent, "unit" + j));
+         }
+         assertSearchOrders(root);
+      }
+   }
+
+   @Test
+   public void testGetChild()
+   {
+      DeploymentUnit ear = unit(null, "");
+      DeploymentUnit jar = unit(ear, "ejb.jar");
+      DeploymentUnit war = unit(ear, "web.war");
+      DeploymentUnit nested = unit(war, "web.war/WEB-INF/lib/nested.jar");
+
+      DeploymentHierarchy hierarchy = new DeploymentHierarchy(ear);
+      Assert.assertSame(jar, hierarchy.getChild(ear, "ejb.jar"));
+      Assert.assertSame(nested, hierarchy.getChild(war, "web.war/WEB-INF/lib/nested.jar"));
+      // not a direct child
+      Assert.assertNull(hierarchy.getChild(ear, "web.war/WEB-INF/lib/nested.jar"));
+      Assert.assertNull(hierarchy.getChild(ear, "missing.jar"));
+
+      // a unit added after the paths got indexed
+      DeploymentUnit added = unit(ear, "added.jar");
+      Assert.assertSame(added, hierarchy.getChild(ear, "added.jar"));
+   }
+
+   /**
+    * Asserts the search order of every unit of the hierarchy matches the baseline
+    */
+   private static void assertSearchOrders(DeploymentUnit topLevelUnit)
+   {
+      DeploymentHierarchy hierarchy = new DeploymentHierarchy(topLevelUnit);
+      List<DeploymentUnit> all = new ArrayList<DeploymentUnit>();
+      collect(topLevelUnit, all);
+      for (DeploymentUnit unit : all)
+      {
+         List<DeploymentUnit> expected = new ArrayList<DeploymentUnit>();
+         baselineSearch(unit, null, expected);
+         Assert.assertEquals("Search order from " + unit.getRelativePath(), expected, hierarchy.getSearchOrder(unit));
+         // computed once
+         Assert.assertSame(hierarchy.getSearchOrder(unit), hierarchy.getSearchOrder(unit));
+      }
+   }
+
+   private static void collect(DeploymentUnit unit, List<DeploymentUnit> all)
+   {
+      all.add(unit);
+      List<DeploymentUnit> children = unit.getChildren();
+      if (children != null)
+      {
+         for (DeploymentUnit child : children)
+         {
+            collect(child, all);
+         }
+      }
+   }
+
+   /**
+    * The recursion ScopedEJBBinderResolver used to search the units with, recording the units
+    * in the order they were first searched. A unit can be searched more than once by the recursion,
+    * which doesn't change which unit matches first.
+    */
+   private static void baselineSearch(DeploymentUnit du, Collection<DeploymentUnit> alreadyScannedDUs, List<DeploymentUnit> searched)
+   {
+      if (!searched.contains(du))
+      {
+         searched.add(du);
+      }
+      if (alreadyScannedDUs == null)
+      {
+         alreadyScannedDUs = new HashSet<DeploymentUnit>();
+      }
+      alreadyScannedDUs.add(du);
+      List<DeploymentUnit> children = du.getChildren();
+      if (children != null)
+      {
+         for (DeploymentUnit child : children)
+         {
+            if (alreadyScannedDUs.contains(child))
+            {
+               continue;
+            }
+            baselineSearch(child, alreadyScannedDUs, searched);
+            alreadyScannedDUs.add(child);
+         }
+      }
+      DeploymentUnit parent = du.getParent();
+      if (parent != null)
+      {
+         baselineSearch(parent, alreadyScannedDUs, searched);
+      }
+   }
+
+   private static DeploymentUnit unit(DeploymentUnit parent, String relativePath)
+   {
+      DeploymentUnit topLevelUnit = parent == null ? null : parent.getTopLevel();
+      DeploymentUnit unit = mock(DeploymentUnit.class);
+      when(unit.getRelativePath()).thenReturn(relativePath);
+      when(unit.getParent()).thenReturn(parent);
+      when(unit.getChildren()).thenReturn(new ArrayList<DeploymentUnit>());
+      when(unit.isTopLevel()).thenReturn(parent == null);
+      when(unit.getTopLevel()).thenReturn(topLevelUnit == null ? unit : topLevelUnit);
+      if (parent != null)
+      {
+         parent.getChildren().add(unit);
+      }
+      return unit;
+   }
+}
@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the parsing of the ejb-link of a reference by {@link EJBLink}.
+ */
+public class EJBLinkTestCase
+{
+   @Test
+   public void testNone()
+   {
+      Assert.assertSame(EJBLink.NONE, EJBLink.parse(null));
+      Assert.assertSame(EJBLink.NONE, EJBLink.parse(""));
+      Assert.assertSame(EJBLink.NONE, EJBLink.parse("  "));
+
+      Assert.assertFalse(EJBLink.NONE.isSpecified());
+      Assert.assertFalse(EJBLink.NONE.isMalformed());
+      Assert.assertNull(EJBLink.NONE.getEjbName());
+   }
+
+   @Test
+   public void testPlain()
+   {
+      EJBLink link = EJBLink.parse("MyBean");
+
+      Assert.assertTrue(link.isSpecified());
+      Assert.assertFalse(link.isMalformed());
+      Assert.assertEquals("MyBean", link.getLink());
+      Assert.assertEquals("MyBean", link.getEjbName());
+      Assert.assertNull(link.getModuleName());
+      Assert.assertNull(link.getPath());
+   }
+
+   @Test
+   public void testModuleName()
+   {
+      EJBLink link = EJBLink.parse("my-module/MyBean");
+
+      Assert.assertTrue(link.isSpecified());
+      Assert.assertFalse(link.isMalformed());
+      Assert.assertEquals("my-module", link.getModuleName());
+      Assert.assertEquals("MyBean", link.getEjbName());
+      Assert.assertNull(link.getPath());
+   }
+
+   @Test
+   public void testPath()
+   {
+      EJBLink link = EJBLink.parse("../lib/other.jar#MyBean");
+
+      Assert.assertTrue(link.isSpecified());
+      Assert.assertFalse(link.isMalformed());
+      // the path can contain a / too
+      Assert.assertEquals("../lib/other.jar", link.getPath());
+      Assert.assertEquals("MyBean", link.getEjbName());
+      Assert.assertNull(link.getModuleName());
+   }
+
+   @Test
+   public void testMalformed()
+   {
+      for (String malformed : new String[] {"other.jar#", "my-module/", "../other.jar#MyBean/"})
+      {
+         EJBLink link = EJBLink.parse(malformed);
+
+         Assert.assertTrue(malformed, link.isSpecified());
+         Assert.assertTrue(malformed, link.isMalformed());
+         Assert.assertEquals(malformed, link.getLink());
+         Assert.assertNull(malformed, link.getEjbName());
+         Assert.assertNull(malformed, link.getPath());
+         Assert.assertNull(malformed, link.getModuleName());
+      }
+   }
+}
@@ -0,0 +1,439 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+import org.jboss.metadata.ejb.spec.BusinessLocalsMetaData;
+import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests the resolution of EJB references by the {@link ScopedEJBBinderResolver}.
+ */
+public class ScopedEJBBinderResolverTestCase
+{
+   public static interface Foo
+   {
+   }
+
+   public static interface FooExt extends Foo
+   {
+   }
+
+   public static interface OtherFooExt extends Foo
+   {
+   }
+
+   public static interface Bar
+   {
+   }
+
+   private JavaEEComponentInformer informer;
+
+   private ScopedEJBBinderResolver resolver;
+
+   @After
+   public void after()
+   {
+      this.resolver.stop();
+   }
+
+   @Before
+   public void before()
+   {
+      JavaEEComponentInformer informer = mock(JavaEEComponentInformer.class);
+      when(informer.getModuleName(any(DeploymentUnit.class))).thenAnswer(new Answer<String>()
+      {
+         public String answer(InvocationOnMock invocation)
+         {
+            String simpleName = ((DeploymentUnit) invocation.getArguments()[0]).getSimpleName();
+            return simpleName.substring(0, simpleName.lastIndexOf('.'));
+         }
+      });
+      this.informer = informer;
+      this.resolver = new ScopedEJBBinderResolver(informer);
+   }
+
+   @Test
+   public void testExactAndSuperTypeMatchesAreAmbiguous()
+   {
+      JBossSessionBeanMetaData a = bean("A", Foo.class);
+      JBossSessionBeanMetaData b = bean("B", FooExt.class);
+      DeploymentUnit jar = unit(null, "jar.jar", metaData(a, b));
+
+      try
+      {
+         this.resolver.resolveEJBBinder(jar, new EJBReference(jar, null, Foo.class.getName(), null, null));
+         Assert.fail("Expected the reference to be ambiguous");
+      }
+      catch (RuntimeException e)
+      {
+         Assert.assertTrue(e.getMessage(), e.getMessage().contains("more than one EJB"));
+      }
+
+      // naming the bean removes the ambiguity
+      EJBBinderResolutionResult result = this.resolver.resolveEJBBinder(jar, new EJBReference(jar, "B", Foo.class.getName(), null, null));
+      Assert.assertSame(b, result.getBeanMetadata());
+      Assert.assertEquals(FooExt.class.getName(), result.getResolvedBusinessInterface());
+      result = this.resolver.resolveEJBBinder(jar, new EJBReference(jar, "A", Foo.class.getName(), null, null));
+      Assert.assertSame(a, result.getBeanMetadata());
+      Assert.assertEquals(Foo.class.getName(), result.getResolvedBusinessInterface());
+   }
+
+   @Test
+   public void testExactMatchOfTheSubInterface()
+   {
+      JBossSessionBeanMetaData a = bean("A", Foo.class);
+      JBossSessionBeanMetaData b = bean("B", FooExt.class);
+      DeploymentUnit jar = unit(null, "jar.jar", metaData(a, b));
+
+      // A doesn't expose FooExt, nor any sub-interface of it
+      EJBBinderResolutionResult result = this.resolver.resolveEJBBinder(jar, new EJBReference(jar, null, FooExt.class.getName(), null, null));
+      Assert.assertSame(b, result.getBeanMetadata());
+      Assert.assertEquals(FooExt.class.getName(), result.getResolvedBusinessInterface());
+      Assert.assertEquals("java:global/jar/B!" + FooExt.class.getName(), result.getJNDIName());
+   }
+
+   @Test
+   public void testSuperTypeMatch()
+   {
+      JBossSessionBeanMetaData a = bean("A", Bar.class);
+      JBossSessionBeanMetaData b = bean("B", FooExt.class, Bar.class);
+      DeploymentUnit jar = unit(null, "jar.jar", metaData(a, b));
+
+      EJBBinderResolutionResult result = this.resolver.resolveEJBBinder(jar, new EJBReference(jar, null, Foo.class.getName(), null, null));
+      Assert.assertSame(b, result.getBeanMetadata());
+      // the exposed interface the reference resolves to
+      Assert.assertEquals(FooExt.class.getName(), result.getResolvedBusinessInterface());
+      Assert.assertEquals("java:global/jar/B!" + FooExt.class.getName(), result.getJNDIName());
+
+      // the index of the unit is built once
+      EnterpriseBeanIndex index = jar.getAttachment(EnterpriseBeanIndex.class);
+      Assert.assertNotNull(index);
+      Assert.assertNull(this.resolver.resolveEJBBinder(jar, new EJBReference(jar, null, Runnable.class.getName(), null, null)));
+      Assert.assertSame(index, jar.getAttachment(EnterpriseBeanIndex.class));
+   }
+
+   @Test
+   public void testSuperTypeNotUniqueWithinBean()
+   {
+      JBossSessionBeanMetaData a = bean("A", FooExt.class, OtherFooExt.class);
+      DeploymentUnit jar = unit(null, "jar.jar", metaData(a));
+
+      try
+      {
+         this.resolver.resolveEJBBinder(jar, new EJBReference(jar, null, Foo.class.getName(), null, null));
+         Assert.fail("Expected the reference to be ambiguous");
+      }
+      catch (RuntimeException e)
+      {
+         Assert.assertTrue(e.getMessage(), e.getMessage().contains("is not unique within EJB A"));
+      }
+      // an exposed interface is matched exactly
+      EJBBinderResolutionResult result = this.resolver.resolveEJBBinder(jar, new EJBReference(jar, null, OtherFooExt.class.getName(), null, null));
+      Assert.assertSame(a, result.getBeanMetadata());
+   }
+
+   @Test
+   public void testNegativeResultInvalidatedOnDeploy() throws Exception
+   {
+      DeploymentUnit ear = unit(null, "test.ear", null);
+      DeploymentUnit jar = unit(ear, "a.jar", metaData(bean("A", Foo.class)));
+      EJBReference reference = new EJBReference(jar, null, Bar.class.getName(), null, null);
+      Assert.assertNull(this.resolver.resolveEJBBinder(jar, reference));
+
+      // the unit providing the bean shows up, the result is still cached
+      JBossSessionBeanMetaData b = bean("B", Bar.class);
+      DeploymentUnit other = unit(ear, "b.jar", metaData(b));
+      Assert.assertNull(this.resolver.resolveEJBBinder(jar, reference));
+
+      EJBResolutionCacheDeployer deployer = new EJBResolutionCacheDeployer(this.resolver);
+      deployer.deploy(other);
+      EJBBinderResolutionResult result = this.resolver.resolveEJBBinder(jar, reference);
+      Assert.assertNotNull(result);
+      Assert.assertSame(b, result.getBeanMetadata());
+      // cached
+      Assert.assertSame(result, this.resolver.resolveEJBBinder(jar, reference));
+
+      ear.getChildren().remove(other);
+      deployer.undeploy(other);
+      Assert.assertNull(this.resolver.resolveEJBBinder(jar, reference));
+   }
+
+   @Test
+   public void testRelativeLinkKeyedByOwner()
+   {
+      DeploymentUnit ear = unit(null, "test.ear", null);
+      DeploymentUnit war = unit(ear, "web.war", null);
+      JBossSessionBeanMetaData linked = bean("A", Foo.class);
+      unit(ear, "lib/x.jar", metaData(linked));
+      unit(ear, "y.jar", metaData(bean("A", Foo.class)));
+
+      EJBBinderResolutionResult result = this.resolver.resolveEJBBinder(war, new EJBReference(war, "lib/x.jar#A", Foo.class.getName(), null, null));
+      Assert.assertSame(linked, result.getBeanMetadata());
+
+      // the same link, from the same unit, but declared in a unit without parent, can't be resolved
+      DeploymentUnit standalone = unit(null, "standalone.jar", null);
+      try
+      {
+         this.resolver.resolveEJBBinder(war, new EJBReference(standalone, "lib/x.jar#A", Foo.class.getName(), null, null));
+         Assert.fail("Expected the relative ejb-link to be rejected");
+      }
+      catch (RuntimeException e)
+      {
+         Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Cannot resolve ejbLink"));
+      }
+   }
+
+   @Test
+   public void testParallelSearchMatchesSequentialSearch()
+   {
+      DeploymentUnit ear = unit(null, "test.ear", null);
+      List<DeploymentUnit> units = new ArrayList<DeploymentUnit>();
+      units.add(ear);
+      DeploymentUnit war = unit(ear, "web.war", null);
+      units.add(war);
+      units.add(unit(war, "web.war/WEB-INF/lib/w.jar", metaData(bean("W", Bar.class))));
+      JBossSessionBeanMetaData[] beans = new JBossSessionBeanMetaData[8];
+      for (int i = 0; i < beans.length; i++)
+      {
+         Class<?> businessLocal = i == 3 ? FooExt.class : (i == 6 ? Foo.class : Bar.class);
+         beans[i] = bean("C" + i, businessLocal);
+         units.add(unit(ear, "j" + i + ".jar", metaData(beans[i])));
+      }
+
+      List<JBossEnterpriseBeanMetaData> expected = new ArrayList<JBossEnterpriseBeanMetaData>();
+      for (DeploymentUnit unit : units)
+      {
+         expected.add(this.resolver.resolveEJBBinder(unit, new EJBReference(unit, null, Foo.class.getName(), null, null)).getBeanMetadata());
+      }
+      // the first match in search order wins
+      Assert.assertSame(beans[3], expected.get(units.indexOf(war)));
+      Assert.assertSame(beans[6], expected.get(units.size() - 2));
+      Assert.assertSame(beans[3], expected.get(units.size() - 1));
+
+      ScopedEJBBinderResolver parallelResolver = new ScopedEJBBinderResolver(this.informer);
+      parallelResolver.setParallelScanThreshold(1);
+      parallelResolver.setParallelism(4);
+      try
+      {
+         parallelResolver.invalidate(ear);
+         for (int i = 0; i < units.size(); i++)
+         {
+            DeploymentUnit unit = units.get(i);
+            EJBBinderResolutionResult result = parallelResolver.resolveEJBBinder(unit, new EJBReference(unit, null, Foo.class.getName(), null, null));
+            Assert.assertSame("Resolved from " + unit.getRelativePath(), expected.get(i), result.getBeanMetadata());
+         }
+      }
+      finally
+      {
+         parallelResolver.stop();
+      }
+   }
+
+   @Test
+   public void testResolveAllMatchesSingleResolution()
+   {
+      DeploymentUnit ear = unit(null, "test.ear", null);
+      JBossSessionBeanMetaData a = bean("A", Foo.class, Bar.class);
+      DeploymentUnit jar = unit(ear, "a.jar", metaData(a));
+      JBossSessionBeanMetaData b = bean("B", OtherFooExt.class);
+      unit(ear, "b.jar", metaData(b));
+
+      List<EJBReference> references = new ArrayList<EJBReference>();
+      // exact match in the unit itself
+      references.add(new EJBReference(jar, null, Bar.class.getName(), null, null));
+      // super-type match in a sibling
+      references.add(new EJBReference(jar, "B", Foo.class.getName(), null, null));
+      // exact match in a sibling
+      references.add(new EJBReference(jar, null, OtherFooExt.class.getName(), null, null));
+      // can't be resolved anywhere
+      references.add(new EJBReference(jar, null, Runnable.class.getName(), null, null));
+
+      List<EJBBinderResolutionResult> expected = new ArrayList<EJBBinderResolutionResult>();
+      for (EJBReference reference : references)
+      {
+         expected.add(this.resolver.resolveEJBBinder(jar, reference));
+      }
+      this.resolver.invalidate(ear);
+
+      Map<EJBReference, EJBBinderResolutionResult> results = this.resolver.resolveAll(jar, references);
+      Assert.assertEquals(references, new ArrayList<EJBReference>(results.keySet()));
+      for (int i = 0; i < references.size(); i++)
+      {
+         EJBBinderResolutionResult result = results.get(references.get(i));
+         if (expected.get(i) == null)
+         {
+            Assert.assertNull(result);
+            continue;
+         }
+         Assert.assertSame(expected.get(i).getBeanMetadata(), result.getBeanMetadata());
+         Assert.assertEquals(expected.get(i).getResolvedBusinessInterface(), result.getResolvedBusinessInterface());
+         Assert.assertEquals(expected.get(i).getJNDIName(), result.getJNDIName());
+      }
+      Assert.assertSame(a, results.get(references.get(0)).getBeanMetadata());
+      Assert.assertSame(b, results.get(references.get(1)).getBeanMetadata());
+      Assert.assertEquals(OtherFooExt.class.getName(), results.get(references.get(1)).getResolvedBusinessInterface());
+
+      // the results of the batch, negative ones included, are cached
+      for (EJBReference reference : references)
+      {
+         Assert.assertSame(results.get(reference), this.resolver.resolveEJBBinder(jar, reference));
+      }
+      Map<EJBReference, EJBBinderResolutionResult> cached = this.resolver.resolveAll(jar, references);
+      for (EJBReference reference : references)
+      {
+         Assert.assertSame(results.get(reference), cached.get(reference));
+      }
+   }
+
+   private static JBossSessionBeanMetaData bean(String ejbName, Class<?>... businessLocals)
+   {
+      JBossSessionBeanMetaData bean = mock(JBossSessionBeanMetaData.class);
+      when(bean.isSession()).thenReturn(true);
+      when(bean.getEjbName()).thenReturn(ejbName);
+      BusinessLocalsMetaData locals = new BusinessLocalsMetaData();
+      for (Class<?> businessLocal : businessLocals)
+      {
+         locals.add(businessLocal.getName());
+      }
+      when(bean.getBusinessLocals()).thenReturn(locals);
+      return bean;
+   }
+
+   private static JBossMetaData metaData(JBossSessionBeanMetaData... beans)
+   {
+      JBossMetaData metaData = mock(JBossMetaData.class);
+      final List<JBossEnterpriseBeanMetaData> beanList = new ArrayList<JBossEnterpriseBeanMetaData>();
+      for (JBossSessionBeanMetaData bean : beans)
+      {
+         when(bean.getJBossMetaData()).thenReturn(metaData);
+         beanList.add(bean);
+      }
+      JBossEnterpriseBeansMetaData enterpriseBeans = mock(JBossEnterpriseBeansMetaData.class);
+      when(enterpriseBeans.iterator()).thenAnswer(new Answer<Iterator<JBossEnterpriseBeanMetaData>>()
+      {
+         public Iterator<JBossEnterpriseBeanMetaData> answer(InvocationOnMock invocation)
+         {
+            return beanList.iterator();
+         }
+      });
+      when(metaData.getEnterpriseBeans()).thenReturn(enterpriseBeans);
+      return metaData;
+   }
+
+   /**
+    * Creates a deployment unit which keeps its attachments
+    * 
+    * @param parent The parent unit, null for a top-level unit
+    * @param path The name of a top-level unit, the relative path of the others
+    * @param metaData The metadata of the unit, can be null
+    */
+   @SuppressWarnings("unchecked")
+   private static DeploymentUnit unit(DeploymentUnit parent, String path, JBossMetaData metaData)
+   {
+      DeploymentUnit topLevelUnit = parent == null ? null : parent.getTopLevel();
+      DeploymentUnit unit = mock(DeploymentUnit.class);
+      String relativePath = parent == null ? "" : path;
+      String simpleName = path.substring(path.lastIndexOf('/') + 1);
+      // not computed while stubbing, since it calls another mock
+      String name = "vfs:///" + (parent == null ? path : topLevelUnit.getSimpleName() + "/" + path);
+      when(unit.getName()).thenReturn(name);
+      when(unit.getSimpleName()).thenReturn(simpleName);
+      when(unit.getRelativePath()).thenReturn(relativePath);
+      when(unit.getParent()).thenReturn(parent);
+      when(unit.getChildren()).thenReturn(new ArrayList<DeploymentUnit>());
+      when(unit.isTopLevel()).thenReturn(parent == null);
+      when(unit.getTopLevel()).thenReturn(topLevelUnit == null ? unit : topLevelUnit);
+      when(unit.getClassLoader()).thenReturn(ScopedEJBBinderResolverTestCase.class.getClassLoader());
+
+      final Map<String, Object> attachments = new ConcurrentHashMap<String, Object>();
+      Answer<Object> get = new Answer<Object>()
+      {
+         public Object answer(InvocationOnMock invocation)
+         {
+            return attachments.get(key(invocation.getArguments()[0]));
+         }
+      };
+      doAnswer(get).when(unit).getAttachment(any(Class.class));
+      doAnswer(get).when(unit).getAttachment(anyString(), any(Class.class));
+      doAnswer(new Answer<Object>()
+      {
+         public Object answer(InvocationOnMock invocation)
+         {
+            return attachments.put(key(invocation.getArguments()[0]), invocation.getArguments()[1]);
+         }
+      }).when(unit).addAttachment(any(Class.class), any());
+      doAnswer(new Answer<Object>()
+      {
+         public Object answer(InvocationOnMock invocation)
+         {
+            return attachments.remove(key(invocation.getArguments()[0]));
+         }
+      }).when(unit).removeAttachment(any(Class.class));
+      Answer<Boolean> present = new Answer<Boolean>()
+      {
+         public Boolean answer(InvocationOnMock invocation)
+         {
+            return attachments.containsKey(key(invocation.getArguments()[0]));
+         }
+      };
+      doAnswer(present).when(unit).isAttachmentPresent(any(Class.class));
+      doAnswer(present).when(unit).isAttachmentPresent(anyString());
+
+      if (metaData != null)
+      {
+         attachments.put(JBossMetaData.class.getName(), metaData);
+      }
+      if (parent != null)
+      {
+         parent.getChildren().add(unit);
+      }
+      return unit;
+   }
+
+   private static String key(Object attachment)
+   {
+      return attachment instanceof Class<?> ? ((Class<?>) attachment).getName() : (String) attachment;
+   }
+}